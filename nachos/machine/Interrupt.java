@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,8 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	traceInterrupts = Lib.test(dbgInt);
+	updateNextDueTime();
     }
 
     /**
@@ -120,17 +119,58 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance the simulated time to the last kernel tick before the next
+     * pending interrupt is due, as if the CPU had been spinning with nothing
+     * to do until then. Interrupts must be disabled; re-enabling them will
+     * then advance time by one more tick and invoke the handler, exactly as
+     * spinning would have. Does nothing while tracing interrupts, so that
+     * every tick is still printed.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	if (numPending == 0 || traceInterrupts)
+	    return;
+
+	Stats stats = privilege.stats;
+
+	// the interrupt fires on the first tick at or after its due time
+	long wait = pendingTimes[0] - stats.totalTicks;
+	long skippedTicks = (wait-1) / Stats.KernelTick;
+
+	if (skippedTicks > 0) {
+	    stats.kernelTicks += skippedTicks * Stats.KernelTick;
+	    stats.totalTicks += skippedTicks * Stats.KernelTick;
+	}
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	if (numPending == pendingTimes.length)
+	    growPending();
+
+	// sift the new interrupt up from the first free slot
+	long id = numPendingInterruptsCreated++;
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1) >>> 1;
+	    if (!precedes(time, id, parent))
+		break;
+
+	    movePending(parent, i);
+	    i = parent;
+	}
+	setPending(i, time, id, type, handler);
+
+	updateNextDueTime();
     }
 
     private void tick(boolean inKernelMode) {
@@ -145,7 +185,13 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
-	if (Lib.test(dbgInt))
+	// nothing is due yet (and we're not tracing), so skip checkIfDue()
+	if (stats.totalTicks < nextDueTime) {
+	    enabled = true;
+	    return;
+	}
+
+	if (traceInterrupts)
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
 	enabled = false;
@@ -158,30 +204,25 @@ public final class Interrupt {
 
 	Lib.assertTrue(disabled());
 
-	if (Lib.test(dbgInt))
+	if (traceInterrupts)
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (numPending == 0 || pendingTimes[0] > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (numPending > 0 && pendingTimes[0] <= time) {
+	    String type = pendingTypes[0];
+	    Runnable handler = pendingHandlers[0];
+	    removeFirstPending();
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,44 +233,103 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	// the heap is only partially ordered, so sort a copy of its indices
+	Integer[] order = new Integer[numPending];
+	for (int i=0; i<numPending; i++)
+	    order[i] = i;
+	Arrays.sort(order, new java.util.Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    if (precedes(pendingTimes[a], pendingIds[a], b))
+			return -1;
+		    else if (precedes(pendingTimes[b], pendingIds[b], a))
+			return 1;
+		    else
+			return 0;
+		}
+	    });
+
+	for (int i=0; i<numPending; i++) {
+	    System.out.println("  " + pendingTypes[order[i]] +
+			       ", scheduled at " + pendingTimes[order[i]]);
 	}
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
+    /**
+     * Tests whether an interrupt at <i>time</i> with the given creation
+     * <i>id</i> should be handled before the pending interrupt in heap slot
+     * <i>i</i>. Ties in time are broken by id, so handlers scheduled for the
+     * same tick run in the order they were scheduled.
+     */
+    private boolean precedes(long time, long id, int i) {
+	return time < pendingTimes[i] ||
+	    (time == pendingTimes[i] && id < pendingIds[i]);
+    }
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+    private void removeFirstPending() {
+	int last = --numPending;
+	long time = pendingTimes[last];
+	long id = pendingIds[last];
+	String type = pendingTypes[last];
+	Runnable handler = pendingHandlers[last];
+	setPending(last, 0, 0, null, null);
+
+	// sift the last interrupt down from the root
+	if (last > 0) {
+	    int i = 0;
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= last)
+		    break;
+		if (child+1 < last &&
+		    precedes(pendingTimes[child+1], pendingIds[child+1], child))
+		    child++;
+		if (precedes(time, id, child))
+		    break;
+
+		movePending(child, i);
+		i = child;
+	    }
+	    setPending(i, time, id, type, handler);
 	}
 
-	long time;
-	String type;
-	Runnable handler;
+	updateNextDueTime();
+    }
+
+    private void movePending(int from, int to) {
+	setPending(to, pendingTimes[from], pendingIds[from],
+		   pendingTypes[from], pendingHandlers[from]);
+    }
 
-	private long id;
+    private void setPending(int i, long time, long id, String type,
+			    Runnable handler) {
+	pendingTimes[i] = time;
+	pendingIds[i] = id;
+	pendingTypes[i] = type;
+	pendingHandlers[i] = handler;
+    }
+
+    private void growPending() {
+	int capacity = pendingTimes.length * 2;
+	pendingTimes = Arrays.copyOf(pendingTimes, capacity);
+	pendingIds = Arrays.copyOf(pendingIds, capacity);
+	pendingTypes = Arrays.copyOf(pendingTypes, capacity);
+	pendingHandlers = Arrays.copyOf(pendingHandlers, capacity);
+    }
+
+    /**
+     * Recompute the time that <tt>tick()</tt> compares against. When tracing
+     * interrupts, every tick must go through <tt>checkIfDue()</tt> so that
+     * the pending list is printed.
+     */
+    private void updateNextDueTime() {
+	if (traceInterrupts)
+	    nextDueTime = Long.MIN_VALUE;
+	else if (numPending == 0)
+	    nextDueTime = Long.MAX_VALUE;
+	else
+	    nextDueTime = pendingTimes[0];
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +337,19 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private boolean traceInterrupts;
+
+    /** The earliest time at which <tt>tick()</tt> must call checkIfDue(). */
+    private long nextDueTime;
+
+    /** Pending interrupts, as a binary min-heap ordered by (time, id). */
+    private int numPending = 0;
+    private long[] pendingTimes = new long[initialPendingCapacity];
+    private long[] pendingIds = new long[initialPendingCapacity];
+    private String[] pendingTypes = new String[initialPendingCapacity];
+    private Runnable[] pendingHandlers = new Runnable[initialPendingCapacity];
+
+    private static final int initialPendingCapacity = 16;
 
     private static final char dbgInt = 'i';
 
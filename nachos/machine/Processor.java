@@ -4,6 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,12 +52,51 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	memorySize = pageSize * numPhysPages;
+
+	String memoryFile = Config.getString("Processor.memoryFile");
+	if (memoryFile != null) {
+	    mainMemory = null;
+	    memoryView = mapMemory(new File(memoryFile));
+	}
+	else if (Config.getBoolean("Processor.offHeapMemory", false)) {
+	    mainMemory = null;
+	    memoryView = ByteBuffer.allocateDirect(memorySize);
+	}
+	else {
+	    mainMemory = new byte[memorySize];
+	    memoryView = ByteBuffer.wrap(mainMemory);
+	}
+	memoryView.order(ByteOrder.LITTLE_ENDIAN);
+	decodedPages = new DecodedInstruction[numPhysPages][];
+	decodedPageGenerations = new int[numPhysPages];
+
+	useBlockEngine = Config.getBoolean("Processor.basicBlocks", false);
+	if (useBlockEngine) {
+	    blockPages = new BasicBlock[numPhysPages][];
+	    blockPageGenerations = new int[numPhysPages];
+	}
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", 4);
+	    tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+	    // an instruction needs its own page and the page it accesses mapped
+	    // at once, and both may fall in the same set
+	    Lib.assertTrue(tlbWays >= 2 && tlbSize%tlbWays == 0);
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    int numBuckets = Integer.highestOneBit(tlbSize);
+	    if (numBuckets < tlbSize)
+		numBuckets *= 2;
+
+	    tlbBucketMask = numBuckets - 1;
+	    tlbBuckets = new int[numBuckets];
+	    for (int i=0; i<numBuckets; i++)
+		tlbBuckets[i] = -1;
+	    tlbChain = new int[tlbSize];
 	}
 	else {
 	    translations = null;
@@ -83,6 +129,11 @@ public final class Processor {
     
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * The processor debug flags are checked once, here. If none are enabled,
+     * instructions are executed without any tracing checks, and a basic block
+     * at a time if <tt>Processor.basicBlocks</tt> is set.
      */
     public void run() {
 	Lib.debug(dbgProcessor, "starting program in current thread");
@@ -91,7 +142,15 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
-	Instruction inst = new Instruction();
+	invalidateMicroTLBs();
+
+	boolean traced = Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) ||
+	    Lib.test(dbgFullDisassemble);
+
+	Instruction inst = traced ? new TracedInstruction() : new Instruction();
+
+	if (useBlockEngine && !traced)
+	    runBlocks(inst);
 	
 	while (true) {
 	    try {
@@ -105,6 +164,58 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Execute instructions a basic block at a time. Never returns.
+     *
+     * <p>
+     * Each dispatch translates the PC once, then runs the operations the
+     * block was translated into. Time still advances once per instruction,
+     * exactly as in <tt>run()</tt>. The block is abandoned as soon as an
+     * instruction causes an exception, the PC leaves the block, an interrupt
+     * handler runs (since the handler may have changed the address space), or
+     * the block's own page is written.
+     *
+     * @param	inst	the instruction state to run uncommon instructions
+     *			with.
+     */
+    private void runBlocks(Instruction inst) {
+	while (true) {
+	    int vaddr = registers[regPC];
+	    BasicBlock block;
+
+	    try {
+		block = fetchBlock(vaddr, inst);
+	    }
+	    catch (MipsException e) {
+		e.handle();
+		privilege.interrupt.tick(false);
+		continue;
+	    }
+
+	    int epoch = executionEpoch;
+	    Operation[] operations = block.operations;
+
+	    for (int i=0; i<operations.length; i++, vaddr+=4) {
+		if (registers[regPC] != vaddr)
+		    break;
+
+		try {
+		    operations[i].run();
+		}
+		catch (MipsException e) {
+		    e.handle();
+		    privilege.interrupt.tick(false);
+		    break;
+		}
+
+		privilege.interrupt.tick(false);
+
+		if (executionEpoch != epoch)
+		    break;
+	    }
+	}
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -169,12 +280,21 @@ public final class Processor {
      * the specified page table. The size of the current address space will be
      * determined from the length of the page table array.
      *
+     * <p>
+     * Switching to a different page table also discards all cached decoded
+     * instructions, since the kernel may have loaded new code into physical
+     * memory before mapping it.
+     *
      * @param	pageTable	the page table to use.
      */
     public void setPageTable(TranslationEntry[] pageTable) {
 	Lib.assertTrue(!usingTLB);
 
+	if (pageTable != translations)
+	    decodeGeneration++;
+
 	this.translations = pageTable;
+	invalidateMicroTLBs();
     }
 
     /**
@@ -188,6 +308,27 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the associativity of this processor's TLB. The TLB is divided into
+     * <tt>getTLBSize() / getTLBWays()</tt> sets of <tt>getTLBWays()</tt>
+     * consecutive entries each. An entry for virtual page <i>vpn</i> may only
+     * be placed in set <tt><i>vpn</i> % (getTLBSize() / getTLBWays())</tt>.
+     * If <tt>getTLBWays() == getTLBSize()</tt>, the TLB is fully associative.
+     *
+     * <p>
+     * An instruction can only complete if its own page and the page it
+     * accesses are mapped at the same time, and both may fall in the same
+     * set, so every set has at least two ways. A direct mapped TLB is not
+     * supported.
+     *
+     * @return	the number of entries in each set of this processor's TLB.
+     */
+    public int getTLBWays() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +346,14 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * If the TLB is fully associative, the location of an entry within the
+     * TLB does not affect anything. Otherwise a valid entry must be placed in
+     * the set selected by its virtual page number (see
+     * <tt>getTLBWays()</tt>).
+     *
+     * <p>
+     * Any cached decoded instructions for the newly mapped physical page are
+     * discarded, since the kernel may have just loaded new code into it.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,8 +361,16 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid ||
+		       number/tlbWays == entry.vpn % (tlbSize/tlbWays));
 
+	unlinkTLBEntry(number);
 	translations[number] = new TranslationEntry(entry);
+	linkTLBEntry(number);
+	invalidateMicroTLBs();
+
+	if (entry.valid)
+	    invalidateDecodedPage(entry.ppn);
     }
 
     /**
@@ -232,12 +387,110 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * There is no such array if physical memory is kept off the Java heap
+     * (see <tt>Processor.offHeapMemory</tt> and
+     * <tt>Processor.memoryFile</tt>); use <tt>readMemory()</tt> and
+     * <tt>writeMemory()</tt> instead, which work either way.
+     *
+     * <p>
+     * The processor caches decoded instructions by physical address. A kernel
+     * that writes code directly into this array must map the page (using
+     * <tt>setPageTable()</tt> or <tt>writeTLBEntry()</tt>) before the
+     * processor executes it.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null);
+	
 	return mainMemory;
     }
 
+    /**
+     * Copy bytes from physical memory into an array.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array to copy into.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 && paddr+length <= memorySize);
+	
+	if (mainMemory != null) {
+	    System.arraycopy(mainMemory, paddr, data, offset, length);
+	}
+	else {
+	    ByteBuffer source = memoryView.duplicate();
+	    source.position(paddr);
+	    source.get(data, offset, length);
+	}
+    }
+
+    /**
+     * Copy bytes from an array into physical memory. Unlike writing through
+     * <tt>getMemory()</tt>, any cached decoded instructions for the written
+     * pages are discarded immediately.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array to copy from.
+     * @param	offset	the first byte to read from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 && paddr+length <= memorySize);
+	
+	if (mainMemory != null) {
+	    System.arraycopy(data, offset, mainMemory, paddr, length);
+	}
+	else {
+	    ByteBuffer target = memoryView.duplicate();
+	    target.position(paddr);
+	    target.put(data, offset, length);
+	}
+
+	if (length > 0) {
+	    for (int ppn=paddr/pageSize; ppn<=(paddr+length-1)/pageSize; ppn++)
+		invalidateDecodedPage(ppn);
+	}
+    }
+
+    /**
+     * Map physical memory from the specified file, creating or extending the
+     * file if necessary.
+     *
+     * @param	file	the file to map.
+     * @return	a buffer backed by the file.
+     */
+    private ByteBuffer mapMemory(final File file) {
+	final ByteBuffer[] mapped = new ByteBuffer[1];
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+			    mapped[0] = raf.getChannel()
+				.map(FileChannel.MapMode.READ_WRITE, 0,
+				     memorySize);
+			}
+			finally {
+			    // the mapping stays valid after the file is closed
+			    raf.close();
+			}
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    });
+
+	if (mapped[0] == null)
+	    Lib.assertNotReached("unable to map physical memory from " + file);
+
+	return mapped[0];
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -279,6 +532,58 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Add the specified TLB entry, if valid, to the hash chain for its vpn.
+     *
+     * @param	number	the index into the TLB.
+     */
+    private void linkTLBEntry(int number) {
+	TranslationEntry entry = translations[number];
+	if (!entry.valid)
+	    return;
+
+	int bucket = entry.vpn & tlbBucketMask;
+	tlbChain[number] = tlbBuckets[bucket];
+	tlbBuckets[bucket] = number;
+    }
+
+    /**
+     * Remove the specified TLB entry, if valid, from the hash chain for its
+     * vpn.
+     *
+     * @param	number	the index into the TLB.
+     */
+    private void unlinkTLBEntry(int number) {
+	TranslationEntry entry = translations[number];
+	if (!entry.valid)
+	    return;
+
+	int bucket = entry.vpn & tlbBucketMask;
+	if (tlbBuckets[bucket] == number) {
+	    tlbBuckets[bucket] = tlbChain[number];
+	    return;
+	}
+
+	for (int i=tlbBuckets[bucket]; i != -1; i=tlbChain[i]) {
+	    if (tlbChain[i] == number) {
+		tlbChain[i] = tlbChain[number];
+		return;
+	    }
+	}
+
+	Lib.assertNotReached();
+    }
+
+    /**
+     * Empty both micro-TLBs. Called whenever the kernel might have changed a
+     * translation entry: when the page table or a TLB entry is replaced, and
+     * before any interrupt or exception handler runs.
+     */
+    private void invalidateMicroTLBs() {
+	fetchTLB.invalidate();
+	dataTLB.invalidate();
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -294,13 +599,26 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-			       + (writing ? ", write" : ", read..."));
+	return translate(vaddr, size, writing, dataTLB);
+    }
 
+    /**
+     * Translate a virtual address into a physical address, first checking
+     * the specified micro-TLB. A hit skips the page table or TLB lookup and
+     * the permission checks, which were already made when the micro-TLB was
+     * filled.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	micro	the micro-TLB to check and fill.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translate(int vaddr, int size, boolean writing,
+			  MicroTLB micro) throws MipsException {
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
-	    Lib.debug(dbgProcessor, "\t\talignment error");
 	    throw new MipsException(exceptionAddressError, vaddr);
 	}
 
@@ -310,52 +628,108 @@ public final class Processor {
 
 	TranslationEntry entry = null;
 
+	boolean hit = (vpn == micro.vpn && (micro.writable || !writing));
+
+	if (hit) {
+	    entry = micro.entry;
+	}
 	// if not using a TLB, then the vpn is an index into the table
-	if (!usingTLB) {
+	else if (!usingTLB) {
 	    if (translations == null || vpn >= translations.length ||
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
-		Lib.debug(dbgProcessor, "\t\tpage fault");
 		throw new MipsException(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the valid TLB entries that hash with this vpn,
+	// using the lowest-numbered one if there are duplicates
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
+	    int match = -1;
+	    for (int i=tlbBuckets[vpn & tlbBucketMask]; i != -1; i=tlbChain[i]) {
+		if (translations[i].vpn == vpn && (match == -1 || i < match))
+		    match = i;
 	    }
+	    if (match != -1)
+		entry = translations[match];
+
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
-		Lib.debug(dbgProcessor, "\t\tTLB miss");
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
 	}
 
-	// check if trying to write a read-only page
-	if (entry.readOnly && writing) {
-	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	if (!hit) {
+	    // check if trying to write a read-only page
+	    if (entry.readOnly && writing) {
+		throw new MipsException(exceptionReadOnly, vaddr);
+	    }
+
+	    // check if physical page number is out of range
+	    if (entry.ppn < 0 || entry.ppn >= numPhysPages) {
+		throw new MipsException(exceptionBusError, vaddr);
+	    }
+
+	    micro.vpn = vpn;
+	    micro.entry = entry;
+	    micro.writable = !entry.readOnly;
 	}
 
-	// check if physical page number is out of range
 	int ppn = entry.ppn;
-	if (ppn < 0 || ppn >= numPhysPages) {
-	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
-	}
 
 	// set used and dirty bits as appropriate
 	entry.used = true;
 	if (writing)
 	    entry.dirty = true;
 
-	int paddr = (ppn*pageSize) + offset;
+	return (ppn*pageSize) + offset;
+    }
+
+    /**
+     * Translate a virtual address into a physical address, printing the
+     * translation if the processor debug flag is enabled.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	micro	the micro-TLB to check and fill.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translateTraced(int vaddr, int size, boolean writing,
+				MicroTLB micro) throws MipsException {
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
+			       + (writing ? ", write" : ", read..."));
+
+	int paddr;
+	try {
+	    paddr = translate(vaddr, size, writing, micro);
+	}
+	catch (MipsException e) {
+	    if (Lib.test(dbgProcessor)) {
+		switch (e.cause) {
+		case exceptionAddressError:
+		    System.out.println("\t\talignment error");
+		    break;
+		case exceptionPageFault:
+		    System.out.println("\t\tpage fault");
+		    break;
+		case exceptionTLBMiss:
+		    System.out.println("\t\tTLB miss");
+		    break;
+		case exceptionReadOnly:
+		    System.out.println("\t\tread-only exception");
+		    break;
+		case exceptionBusError:
+		    System.out.println("\t\tbad ppn");
+		    break;
+		}
+	    }
+	    throw e;
+	}
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
@@ -372,14 +746,29 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
+	Lib.assertTrue(size==1 || size==2 || size==4);
+	
+	return readPhysMem(translate(vaddr, size, false), size);
+    }
+
+    /**
+     * Read virtual memory as <tt>readMem()</tt> does, printing the access if
+     * the processor debug flag is enabled.
+     *
+     * @param	vaddr	the virtual address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return		the value read.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int readMemTraced(int vaddr, int size) throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = readPhysMem(translateTraced(vaddr, size, false, dataTLB),
+				size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -398,6 +787,25 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private void writeMem(int vaddr, int size, int value)
+	throws MipsException {
+	Lib.assertTrue(size==1 || size==2 || size==4);
+	
+	int paddr = translate(vaddr, size, true);
+
+	writePhysMem(paddr, size, value);
+	invalidateDecoded(paddr);
+    }
+
+    /**
+     * Write virtual memory as <tt>writeMem()</tt> does, printing the access
+     * if the processor debug flag is enabled.
+     *
+     * @param	vaddr	the virtual address to write to.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to store.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private void writeMemTraced(int vaddr, int size, int value)
 	throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
@@ -406,8 +814,150 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translateTraced(vaddr, size, true, dataTLB);
+
+	writePhysMem(paddr, size, value);
+	invalidateDecoded(paddr);
+    }
+
+    /**
+     * Read <i>size</i> (1, 2, or 4) bytes of physical memory at <i>paddr</i>,
+     * sign-extending 1 and 2 byte values like <tt>Lib.bytesToInt()</tt>.
+     * <i>paddr</i> must be aligned to <i>size</i>.
+     *
+     * @param	paddr	the physical address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return		the value read.
+     */
+    private int readPhysMem(int paddr, int size) {
+	switch (size) {
+	case 4:
+	    return memoryView.getInt(paddr);
+	case 2:
+	    return memoryView.getShort(paddr);
+	default:
+	    return memoryView.get(paddr);
+	}
+    }
+
+    /**
+     * Write the low <i>size</i> (1, 2, or 4) bytes of <i>value</i> to
+     * physical memory at <i>paddr</i>, which must be aligned to <i>size</i>.
+     *
+     * @param	paddr	the physical address to write to.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to store.
+     */
+    private void writePhysMem(int paddr, int size, int value) {
+	switch (size) {
+	case 4:
+	    memoryView.putInt(paddr, value);
+	    break;
+	case 2:
+	    memoryView.putShort(paddr, (short) value);
+	    break;
+	default:
+	    memoryView.put(paddr, (byte) value);
+	    break;
+	}
+    }
+
+    /**
+     * Return the decoded instruction at the specified physical address,
+     * decoding and caching it if necessary.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @return		the decoded instruction.
+     */
+    private DecodedInstruction fetchDecoded(int paddr) {
+	int ppn = paddr / pageSize;
+
+	DecodedInstruction[] page = decodedPages[ppn];
+	if (page == null || decodedPageGenerations[ppn] != decodeGeneration) {
+	    page = new DecodedInstruction[pageSize/4];
+	    decodedPages[ppn] = page;
+	    decodedPageGenerations[ppn] = decodeGeneration;
+	}
+
+	int index = (paddr % pageSize) / 4;
+	DecodedInstruction decoded = page[index];
+	if (decoded == null) {
+	    decoded = new DecodedInstruction(memoryView.getInt(paddr));
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Discard the cached decoded instruction containing the specified
+     * physical address, if any.
+     *
+     * @param	paddr	the physical address that was written.
+     */
+    private void invalidateDecoded(int paddr) {
+	int ppn = paddr / pageSize;
+
+	DecodedInstruction[] page = decodedPages[ppn];
+	if (page != null)
+	    page[(paddr % pageSize) / 4] = null;
+
+	// a block running from this page may include the instruction
+	if (useBlockEngine && blockPages[ppn] != null) {
+	    blockPages[ppn] = null;
+	    executionEpoch++;
+	}
+    }
+
+    /**
+     * Discard all cached decoded instructions for the specified physical page.
+     *
+     * @param	ppn	the physical page number.
+     */
+    private void invalidateDecodedPage(int ppn) {
+	if (ppn >= 0 && ppn < numPhysPages) {
+	    decodedPages[ppn] = null;
+
+	    if (useBlockEngine)
+		blockPages[ppn] = null;
+	}
+    }
+
+    /**
+     * Translate the specified PC and return the basic block starting there,
+     * building and caching it if necessary.
+     *
+     * <p>
+     * A block runs from its first instruction to the first branch (plus its
+     * delay slot), syscall, or illegal instruction, or to the end of the page,
+     * whichever comes first.
+     *
+     * @param	vaddr	the virtual address of the first instruction.
+     * @param	inst	the instruction state that uncommon instructions in
+     *			the block are run with.
+     * @return		the basic block.
+     * @exception	MipsException	if the PC could not be translated.
+     */
+    private BasicBlock fetchBlock(int vaddr, Instruction inst)
+	throws MipsException {
+	int paddr = translate(vaddr, 4, false, fetchTLB);
+	int ppn = paddr / pageSize;
+
+	BasicBlock[] page = blockPages[ppn];
+	if (page == null || blockPageGenerations[ppn] != decodeGeneration) {
+	    page = new BasicBlock[pageSize/4];
+	    blockPages[ppn] = page;
+	    blockPageGenerations[ppn] = decodeGeneration;
+	}
+
+	int index = (paddr % pageSize) / 4;
+	BasicBlock block = page[index];
+	if (block == null) {
+	    block = new BasicBlock(paddr, inst);
+	    page[index] = block;
+	}
+
+	return block;
     }
 
     /**
@@ -541,20 +1091,54 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays = 4;
+    /** The first valid TLB entry in each hash bucket, or -1. */
+    private int[] tlbBuckets;
+    /** The next valid TLB entry in the same hash bucket, or -1. */
+    private int[] tlbChain;
+    /** Mask selecting the hash bucket for a vpn. */
+    private int tlbBucketMask;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
 
+    /** The last translation used to fetch an instruction. */
+    private MicroTLB fetchTLB = new MicroTLB();
+    /** The last translation used to load or store data. */
+    private MicroTLB dataTLB = new MicroTLB();
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
+    /** Size of main memory, in bytes. */
+    private int memorySize;
+    /** Main memory for user programs, or <tt>null</tt> if off the heap. */
     private byte[] mainMemory;
+    /** A little-endian view of main memory, for whole-word access. */
+    private ByteBuffer memoryView;
+
+    /** Cached decoded instructions, indexed by ppn and then word offset. */
+    private DecodedInstruction[][] decodedPages;
+    /** The decode generation each page in <tt>decodedPages</tt> belongs to. */
+    private int[] decodedPageGenerations;
+    /** Incremented to discard every page in <tt>decodedPages</tt> at once. */
+    private int decodeGeneration = 0;
+
+    /** <tt>true</tt> if executing a basic block at a time. */
+    private boolean useBlockEngine;
+    /** Cached basic blocks, indexed by ppn and then word offset. */
+    private BasicBlock[][] blockPages;
+    /** The decode generation each page in <tt>blockPages</tt> belongs to. */
+    private int[] blockPageGenerations;
+    /** Incremented whenever an interrupt handler is about to run, or a page
+     *	holding basic blocks is written. */
+    private int executionEpoch = 0;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -566,6 +1150,8 @@ public final class Processor {
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    invalidateMicroTLBs();
+	    executionEpoch++;
 	}
     }
 
@@ -593,6 +1179,7 @@ public final class Processor {
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
+	    invalidateMicroTLBs();
 
 	    Lib.assertTrue(exceptionHandler != null);
 
@@ -616,88 +1203,69 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	public void run(DecodedInstruction fetched) throws MipsException {
+	    // an uncommon instruction in a basic block, already fetched
+	    decoded = fetched;
+	    value = fetched.value;
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
-	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-				 + "\t");
-
-	    value = readMem(registers[regPC], 4);
+	void fetch() throws MipsException {
+	    decoded = fetchDecoded(translate(registers[regPC], 4, false,
+					     fetchTLB));
+	    value = decoded.value;
 	}
 	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	int load(int vaddr, int size) throws MipsException {
+	    return readMem(vaddr, size);
+	}
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	void store(int vaddr, int size, int value) throws MipsException {
+	    writeMem(vaddr, size, value);
+	}
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	void decode() {
+	    // the fields that depend only on the instruction word were decoded
+	    // once, when it was first fetched
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -717,12 +1285,9 @@ public final class Processor {
 		src1 &= 0xFFFFFFFFL;
 		src2 &= 0xFFFFFFFFL;
 	    }	    
-
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
 	}
 
-	private void print() {
+	void print() {
 	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
 		!Lib.test(dbgFullDisassemble))
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
@@ -845,7 +1410,7 @@ public final class Processor {
 		System.out.print("\n");
 	}
 
-	private void execute() throws MipsException {
+	void execute() throws MipsException {
 	    int value;
 	    int preserved;
 	    
@@ -942,7 +1507,7 @@ public final class Processor {
 		throw new MipsException(exceptionSyscall);
 
 	    case Mips.LOAD:
-		value = readMem(addr, size);
+		value = load(addr, size);
 		
 		if (!test(Mips.UNSIGNED))
 		    dst = Lib.extend(value, 0, size*8);
@@ -952,7 +1517,7 @@ public final class Processor {
 		break;
 
 	    case Mips.LWL:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// LWL shifts the input left so the addressed byte is highest
 		preserved = (3-(addr&0x3))*8;	// number of bits to preserve
@@ -963,7 +1528,7 @@ public final class Processor {
 		break;
 
 	    case Mips.LWR:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// LWR shifts the input right so the addressed byte is lowest
 		preserved = (addr&0x3)*8;	// number of bits to preserve
@@ -974,11 +1539,11 @@ public final class Processor {
 		break;
 
 	    case Mips.STORE:
-		writeMem(addr, size, (int) src2);
+		store(addr, size, (int) src2);
 		break;
 
 	    case Mips.SWL:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// SWL shifts highest order byte into the addressed position
 		preserved = (3-(addr&0x3))*8;
@@ -988,11 +1553,11 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		store(addr&~0x3, 4, (int) dst);
 		break;
 
 	    case Mips.SWR:
-		value = readMem(addr&~0x3, 4);
+		value = load(addr&~0x3, 4);
 
 		// SWR shifts the lowest order byte into the addressed position
 		preserved = (addr&0x3)*8;
@@ -1002,7 +1567,7 @@ public final class Processor {
 		// merge values
 		dst = (dst & mask) | (value & ~mask);
 
-		writeMem(addr&~0x3, 4, (int) dst);
+		store(addr&~0x3, 4, (int) dst);
 		break;
 
 	    case Mips.UNIMPL:
@@ -1016,7 +1581,7 @@ public final class Processor {
 	    }
 	}
 
-	private void writeBack() throws MipsException {
+	void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
 		throw new MipsException(exceptionOverflow);
@@ -1032,26 +1597,15 @@ public final class Processor {
 	    if (test(Mips.DST) && dstReg != 0)
 		registers[dstReg] = (int) dst;
 
-	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
-		    System.out.print("#0x" + Lib.toHexString((int) dst));
-		    if (test(Mips.DELAYEDLOAD))
-			System.out.print(" (delayed load)");
-		}
-	    }
-
 	    if (test(Mips.BRANCH) && branch) {
 		nextPC = jtarget;
 	    }
 
 	    advancePC(nextPC);
-
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1617,549 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * A single-entry cache of the last translation entry that passed all the
+     * checks in <tt>translate()</tt>.
+     */
+    private static class MicroTLB {
+	void invalidate() {
+	    vpn = -1;
+	    entry = null;
+	}
+
+	int vpn = -1;
+	TranslationEntry entry = null;
+	boolean writable;
+    }
+
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and not on the contents of any registers.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    int signedImm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets use the sign-extended immediate
+	    branchOffset = signedImm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = signedImm & 0xFFFF;
+	    else
+		imm = signedImm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg, branchOffset;
+    }
+
+    /**
+     * An instruction that prints what it does according to the processor and
+     * disassembly debug flags. Only used if one of those flags is enabled, so
+     * that <tt>Instruction</tt> itself never has to check them.
+     */
+    private class TracedInstruction extends Instruction {
+	void fetch() throws MipsException {
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+				 + "\t");
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    decoded = fetchDecoded(translateTraced(registers[regPC], 4, false,
+						   fetchTLB));
+	    value = decoded.value;
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+	}
+
+	int load(int vaddr, int size) throws MipsException {
+	    return readMemTraced(vaddr, size);
+	}
+
+	void store(int vaddr, int size, int value) throws MipsException {
+	    writeMemTraced(vaddr, size, value);
+	}
+
+	void decode() {
+	    super.decode();
+
+	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+		print();	    
+	}
+
+	void writeBack() throws MipsException {
+	    super.writeBack();
+
+	    if ((Lib.test(Mips.DST, flags) || Lib.test(Mips.DELAYEDLOAD, flags))
+		&& dstReg != 0) {
+		if (Lib.test(dbgFullDisassemble)) {
+		    System.out.print("#0x" + Lib.toHexString((int) dst));
+		    if (Lib.test(Mips.DELAYEDLOAD, flags))
+			System.out.print(" (delayed load)");
+		}
+	    }
+
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("\n");
+	}
+    }
+
+    /**
+     * A straight-line sequence of instructions in one physical page,
+     * translated into operations.
+     */
+    private class BasicBlock {
+	BasicBlock(int paddr, Instruction inst) {
+	    int length = 0;
+	    int maxLength = (pageSize - paddr % pageSize) / 4;
+
+	    while (length < maxLength) {
+		DecodedInstruction decoded = fetchDecoded(paddr + length*4);
+		length++;
+
+		if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		    // include the delay slot
+		    if (length < maxLength)
+			length++;
+		    break;
+		}
+
+		if (decoded.operation == Mips.SYSCALL ||
+		    decoded.operation == Mips.UNIMPL ||
+		    decoded.operation == Mips.INVALID)
+		    break;
+	    }
+
+	    operations = new Operation[length];
+	    for (int i=0; i<length; i++)
+		operations[i] = makeOperation(fetchDecoded(paddr + i*4), inst);
+	}
+
+	final Operation[] operations;
+    }
+
+    /**
+     * Translate a decoded instruction into an operation specialised for it.
+     * The common ALU, memory, branch, and jump instructions get an operation
+     * of their own. The rest (multiplies and divides, instructions that trap
+     * on overflow, unaligned loads and stores, branches that link, and
+     * instructions that always cause an exception) are run by the
+     * interpreter.
+     *
+     * @param	decoded	the decoded instruction.
+     * @param	inst	the instruction state to run uncommon instructions
+     *			with.
+     * @return	the operation.
+     */
+    private Operation makeOperation(final DecodedInstruction decoded,
+				    final Instruction inst) {
+	int flags = decoded.flags;
+	boolean immediate = Lib.test(Mips.SRC2IMM, flags);
+	boolean unsigned = Lib.test(Mips.UNSIGNED, flags);
+	boolean shiftAmount = Lib.test(Mips.SRC1SH, flags);
+	final int size = decoded.size;
+
+	switch (decoded.operation) {
+	case Mips.ADD:
+	    if (Lib.test(Mips.OVERFLOW, flags))
+		break;
+
+	    if (immediate)
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rs] + imm);
+		    }
+		};
+	    else
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rs] + registers[rt]);
+		    }
+		};
+
+	case Mips.SUB:
+	    if (Lib.test(Mips.OVERFLOW, flags))
+		break;
+
+	    return new Operation(decoded) {
+		void run() {
+		    finish(registers[rs] - registers[rt]);
+		}
+	    };
+
+	case Mips.SLL:
+	    if (shiftAmount)
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rt] << sh);
+		    }
+		};
+	    else
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rt] << (registers[rs]&0x1F));
+		    }
+		};
+
+	case Mips.SRA:
+	    if (shiftAmount)
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rt] >> sh);
+		    }
+		};
+	    else
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rt] >> (registers[rs]&0x1F));
+		    }
+		};
+
+	// shift the sign-extended register, as Instruction.execute() does
+	case Mips.SRL:
+	    if (shiftAmount)
+		return new Operation(decoded) {
+		    void run() {
+			finish((int) ((long) registers[rt] >>> sh));
+		    }
+		};
+	    else
+		return new Operation(decoded) {
+		    void run() {
+			finish((int) ((long) registers[rt] >>>
+				      (registers[rs]&0x1F)));
+		    }
+		};
+
+	case Mips.SLT:
+	    if (immediate && unsigned)
+		return new Operation(decoded) {
+		    void run() {
+			finish((registers[rs]&0xFFFFFFFFL) < imm ? 1 : 0);
+		    }
+		};
+	    else if (immediate)
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rs] < imm ? 1 : 0);
+		    }
+		};
+	    else if (unsigned)
+		return new Operation(decoded) {
+		    void run() {
+			finish((registers[rs]&0xFFFFFFFFL) <
+			       (registers[rt]&0xFFFFFFFFL) ? 1 : 0);
+		    }
+		};
+	    else
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rs] < registers[rt] ? 1 : 0);
+		    }
+		};
+
+	case Mips.AND:
+	    if (immediate)
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rs] & imm);
+		    }
+		};
+	    else
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rs] & registers[rt]);
+		    }
+		};
+
+	case Mips.OR:
+	    if (immediate)
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rs] | imm);
+		    }
+		};
+	    else
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rs] | registers[rt]);
+		    }
+		};
+
+	case Mips.XOR:
+	    if (immediate)
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rs] ^ imm);
+		    }
+		};
+	    else
+		return new Operation(decoded) {
+		    void run() {
+			finish(registers[rs] ^ registers[rt]);
+		    }
+		};
+
+	case Mips.NOR:
+	    return new Operation(decoded) {
+		void run() {
+		    finish(~(registers[rs] | registers[rt]));
+		}
+	    };
+
+	case Mips.LUI:
+	    return new Operation(decoded) {
+		void run() {
+		    finish(imm << 16);
+		}
+	    };
+
+	case Mips.MFLO:
+	    return new Operation(decoded) {
+		void run() {
+		    finish(registers[regLo]);
+		}
+	    };
+
+	case Mips.MFHI:
+	    return new Operation(decoded) {
+		void run() {
+		    finish(registers[regHi]);
+		}
+	    };
+
+	case Mips.LOAD:
+	    if (unsigned)
+		return new Operation(decoded) {
+		    void run() throws MipsException {
+			int value = readMem(registers[rs] + imm, size);
+			finishDelayedLoad(value);
+		    }
+		};
+	    else
+		return new Operation(decoded) {
+		    void run() throws MipsException {
+			int value = readMem(registers[rs] + imm, size);
+			finishDelayedLoad(Lib.extend(value, 0, size*8));
+		    }
+		};
+
+	case Mips.STORE:
+	    return new Operation(decoded) {
+		void run() throws MipsException {
+		    writeMem(registers[rs] + imm, size, registers[rt]);
+		    finishBranch(false);
+		}
+	    };
+
+	case Mips.BEQ:
+	    return new Operation(decoded) {
+		void run() {
+		    finishBranch(registers[rs] == registers[rt]);
+		}
+	    };
+
+	case Mips.BNE:
+	    return new Operation(decoded) {
+		void run() {
+		    finishBranch(registers[rs] != registers[rt]);
+		}
+	    };
+
+	case Mips.BLEZ:
+	    return new Operation(decoded) {
+		void run() {
+		    finishBranch(registers[rs] <= 0);
+		}
+	    };
+
+	case Mips.BGTZ:
+	    return new Operation(decoded) {
+		void run() {
+		    finishBranch(registers[rs] > 0);
+		}
+	    };
+
+	case Mips.BLTZ:
+	    if (Lib.test(Mips.LINK, flags))
+		break;
+
+	    return new Operation(decoded) {
+		void run() {
+		    finishBranch(registers[rs] < 0);
+		}
+	    };
+
+	case Mips.BGEZ:
+	    if (Lib.test(Mips.LINK, flags))
+		break;
+
+	    return new Operation(decoded) {
+		void run() {
+		    finishBranch(registers[rs] >= 0);
+		}
+	    };
+
+	case Mips.JUMP:
+	    final boolean link = Lib.test(Mips.LINK, flags);
+
+	    if (decoded.format == Mips.JFMT)
+		return new Operation(decoded) {
+		    void run() {
+			finishJump((registers[regNextPC]&0xF0000000) | target,
+				   link);
+		    }
+		};
+	    else
+		return new Operation(decoded) {
+		    void run() {
+			finishJump(registers[rs], link);
+		    }
+		};
+	}
+
+	return new Operation(decoded) {
+	    void run() throws MipsException {
+		inst.run(decoded);
+	    }
+	};
+    }
+
+    /**
+     * One instruction of a basic block, specialised for that instruction when
+     * the block is built, so that running it needs no decoding or dispatch.
+     * Running an operation has exactly the effect <tt>Instruction.run()</tt>
+     * would: the source registers are read before the previous delayed load
+     * completes, and the PC is advanced last.
+     */
+    private abstract class Operation {
+	Operation(DecodedInstruction decoded) {
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    sh = decoded.sh;
+	    imm = decoded.imm;
+	    dstReg = decoded.dstReg;
+	    branchOffset = decoded.branchOffset;
+	    target = decoded.target<<2;
+	}
+
+	abstract void run() throws MipsException;
+
+	/**
+	 * Finish an instruction that writes its destination register.
+	 *
+	 * @param	value	the value to write.
+	 */
+	void finish(int value) {
+	    finishLoad();
+
+	    if (dstReg != 0)
+		registers[dstReg] = value;
+
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/**
+	 * Finish a load, which writes its destination register only once the
+	 * next instruction has run.
+	 *
+	 * @param	value	the value loaded.
+	 */
+	void finishDelayedLoad(int value) {
+	    delayedLoad(dstReg, value, 0xFFFFFFFF);
+
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/**
+	 * Finish a conditional branch, or any other instruction that writes no
+	 * register.
+	 *
+	 * @param	taken	<tt>true</tt> if the branch is taken.
+	 */
+	void finishBranch(boolean taken) {
+	    finishLoad();
+
+	    int nextPC = registers[regNextPC];
+	    advancePC(taken ? nextPC + branchOffset : nextPC + 4);
+	}
+
+	/**
+	 * Finish a jump.
+	 *
+	 * @param	jtarget	the address to jump to.
+	 * @param	link	<tt>true</tt> if the return address is saved.
+	 */
+	void finishJump(int jtarget, boolean link) {
+	    finishLoad();
+
+	    if (link && dstReg != 0)
+		registers[dstReg] = registers[regNextPC]+4;
+
+	    advancePC(jtarget);
+	}
+
+	final int rs, rt, sh, imm, dstReg, branchOffset, target;
+    }
+
     private static class Mips {
 	Mips() {
 	}
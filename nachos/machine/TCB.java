@@ -6,6 +6,9 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +24,25 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code.
  * It's against the rules, <i>and</i> it can easily deadlock nachos.
+ *
+ * <p>
+ * Java threads outlive the TCBs they run: when a TCB is destroyed, its Java
+ * thread waits in a pool of up to <tt>TCB.poolSize</tt> idle threads for the
+ * next TCB to be started.
+ *
+ * <p>
+ * If <tt>TCB.virtualThreads</tt> is set in the config file (and the JVM
+ * supports them), TCBs are bound to virtual threads instead, and hand the
+ * processor to each other with <tt>LockSupport.park()</tt> and
+ * <tt>unpark()</tt> rather than a monitor. Virtual threads are cheap, so in
+ * this mode there is no <tt>maxThreads</tt> limit.
+ *
+ * <p>
+ * If <tt>TCB.continuations</tt> is set instead, no threads are created at
+ * all: every TCB is a continuation run by a loop on the Java thread that
+ * started Nachos, and a context switch just yields back to that loop, which
+ * runs the next TCB. This needs a JDK with continuations, started with
+ * <tt>--add-exports java.base/jdk.internal.vm=ALL-UNNAMED</tt>.
  */
 public final class TCB {
     /**
@@ -40,6 +62,102 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	poolSize = Config.getInteger("TCB.poolSize", 16);
+
+	if (Config.getBoolean("TCB.continuations", false))
+	    findContinuations();
+	else if (Config.getBoolean("TCB.virtualThreads", false))
+	    findVirtualThreadBuilder();
+    }
+
+    /**
+     * Look up <tt>jdk.internal.vm.Continuation</tt> reflectively. Like
+     * <tt>findVirtualThreadBuilder()</tt>, this must happen before the
+     * security manager is installed.
+     */
+    private static void findContinuations() {
+	try {
+	    Class<?> scopeClass = Class.forName("jdk.internal.vm.ContinuationScope");
+	    Class<?> continuationClass = Class.forName("jdk.internal.vm.Continuation");
+
+	    continuationScope =
+		scopeClass.getConstructor(String.class).newInstance("nachos");
+	    continuationConstructor =
+		continuationClass.getConstructor(scopeClass, Runnable.class);
+	    continuationRun = continuationClass.getMethod("run");
+	    continuationYield = continuationClass.getMethod("yield", scopeClass);
+
+	    /* The first run of a continuation, and the first reflective call to
+	     * yield, do things the security manager would not allow, so get them
+	     * over with now by running and resuming a throwaway continuation.
+	     */
+	    Object warmup = newContinuation(new Runnable() {
+		    public void run() { yieldContinuation(); }
+		});
+	    continuationRun.invoke(warmup);
+	    continuationRun.invoke(warmup);
+
+	    useContinuations = true;
+	}
+	catch (Exception e) {
+	    System.out.print(" (no continuations, using platform threads)");
+	}
+    }
+
+    private static Object newContinuation(Runnable target) {
+	try {
+	    return continuationConstructor.newInstance(continuationScope, target);
+	}
+	catch (Exception e) {
+	    throw new Error(e);
+	}
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt> and <tt>Thread.Builder.unstarted()</tt>
+     * reflectively, so that Nachos still builds on JDKs without virtual
+     * threads. Must be called before the security manager is installed.
+     */
+    private static void findVirtualThreadBuilder() {
+	try {
+	    Method ofVirtual = Thread.class.getMethod("ofVirtual");
+	    virtualThreadUnstarted =
+		Class.forName("java.lang.Thread$Builder").getMethod("unstarted",
+								    Runnable.class);
+	    virtualThreadBuilder = ofVirtual.invoke(null);
+
+	    /* Only one TCB ever runs at a time, so one carrier thread is
+	     * enough. The carrier pool creates its threads lazily (including
+	     * extra ones while a carrier is blocked in I/O), and the security
+	     * manager would refuse those, so pin the pool to one carrier and
+	     * start it now with a throwaway virtual thread.
+	     */
+	    if (System.getProperty("jdk.virtualThreadScheduler.parallelism") == null)
+		System.setProperty("jdk.virtualThreadScheduler.parallelism", "1");
+	    if (System.getProperty("jdk.virtualThreadScheduler.maxPoolSize") == null)
+		System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", "1");
+	    Thread warmup = newVirtualThread(new Runnable() {
+		    public void run() { }
+		});
+	    warmup.start();
+	    warmup.join();
+
+	    useVirtualThreads = true;
+	}
+	catch (Exception e) {
+	    System.out.print(" (no virtual threads, using platform threads)");
+	}
+    }
+
+    private static Thread newVirtualThread(Runnable target) {
+	try {
+	    return (Thread) virtualThreadUnstarted.invoke(virtualThreadBuilder,
+							  target);
+	}
+	catch (Exception e) {
+	    throw new Error(e);
+	}
     }
     
     /**
@@ -66,7 +184,8 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(useVirtualThreads || useContinuations ||
+		       runningThreads.size() < maxThreads);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -85,27 +204,53 @@ public final class TCB {
 
 	this.target = target;
 
-	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	if (useContinuations) {
+	    /* Every TCB runs on the Java thread that started Nachos. A new TCB
+	     * just gets a continuation that contextSwitch() will run later; the
+	     * first one is run right away by the loop that will run all the
+	     * others.
 	     */
-	    tcbTarget = new Runnable() {
+	    javaThread = isFirstTCB ? Thread.currentThread() : currentTCB.javaThread;
+	    continuation = newContinuation(new Runnable() {
 		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
 		});
 
-	    /* The Java thread hasn't yet started, but we need to get it
+	    if (isFirstTCB)
+		runContinuations(this);
+	}
+	else if (!isFirstTCB) {
+	    /* If this is not the first TCB, it needs a Java thread to run on.
+	     * If a carrier thread left behind by a destroyed TCB is idle in the
+	     * pool, use that. Otherwise we have to make a new Java thread to
+	     * run it. Creating Java threads is a privileged operation.
+	     */
+	    final Carrier carrier;
+
+	    if (!idleCarriers.isEmpty()) {
+		carrier = idleCarriers.remove(idleCarriers.size() - 1);
+		javaThread = carrier.javaThread;
+	    }
+	    else {
+		carrier = new Carrier();
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    javaThread = useVirtualThreads ? newVirtualThread(carrier)
+				: new Thread(carrier);
+			}
+		    });
+		carrier.javaThread = javaThread;
+	    }
+
+	    /* The carrier isn't running this TCB yet, but we need to get it
 	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	     * current TCB, handing this TCB to the carrier (starting its Java
+	     * thread if it is new), and waiting for it to wake us up from
+	     * threadroot(). Once the new TCB wakes us up, it's safe to context
+	     * switch to the new TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    carrier.assign(this);
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -114,8 +259,11 @@ public final class TCB {
 	     */
 	    javaThread = Thread.currentThread();
 
-	    /* All we have to do now is invoke threadroot() directly. */
+	    /* All we have to do now is invoke threadroot() directly. If it
+	     * returns, this TCB has been destroyed.
+	     */
 	    threadroot();
+	    currentTCB.interrupt();
 	}
     }
 
@@ -157,6 +305,15 @@ public final class TCB {
 
 	TCB previous = currentTCB;
 	previous.running = false;
+
+	if (useContinuations) {
+	    /* Hand this TCB to runContinuations() and suspend. We come back
+	     * here when some other TCB switches back to the previous one.
+	     */
+	    switchTarget = this;
+	    yieldContinuation();
+	    return;
+	}
 	
 	this.interrupt();
 	previous.yield();
@@ -181,6 +338,17 @@ public final class TCB {
 	toBeDestroyed = null;
 
 	this.done = true;
+
+	if (useContinuations) {
+	    /* The doomed TCB is a suspended continuation that will never be
+	     * run again, so there is nothing to wake; just drop it.
+	     */
+	    runningThreads.removeElement(this);
+	    continuation = null;
+	    javaThread = null;
+	    return;
+	}
+
 	currentTCB.running = false;
 
 	this.interrupt();
@@ -211,7 +379,10 @@ public final class TCB {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
 
-	if (!isFirstTCB) {
+	if (useContinuations) {
+	    /* runContinuations() has already made us the current TCB. */
+	}
+	else if (!isFirstTCB) {
 	    /* start() is waiting for us to wake it up, signalling that it's OK
 	     * to context switch to us. We leave the running flag false so that
 	     * we'll still run if a context switch happens before we go to
@@ -244,6 +415,9 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
+	    /* Return to whoever is running us (the carrier, or start() for
+	     * the first TCB), which will acknowledge destroy().
+	     */
 	    runningThreads.removeElement(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
@@ -260,21 +434,55 @@ public final class TCB {
 	}
     }
 
+    /**
+     * Run TCBs as continuations on the current Java thread, starting with
+     * <tt>first</tt>. Each time a continuation yields in
+     * <tt>contextSwitch()</tt>, run the TCB it switched to. Never returns;
+     * Nachos exits from inside a continuation.
+     */
+    private static void runContinuations(TCB first) {
+	switchTarget = first;
+
+	while (true) {
+	    TCB next = switchTarget;
+	    Lib.assertTrue(next != null && !next.done);
+	    switchTarget = null;
+
+	    currentTCB = next;
+	    next.running = true;
+
+	    try {
+		continuationRun.invoke(next.continuation);
+	    }
+	    catch (Exception e) {
+		throw new Error(e);
+	    }
+	}
+    }
+
+    private static void yieldContinuation() {
+	try {
+	    continuationYield.invoke(null, continuationScope);
+	}
+	catch (Exception e) {
+	    throw new Error(e);
+	}
+    }
+
     /**
      * Invoked by threadroot() and by contextSwitch() when it is necessary to
      * wait for another TCB to context switch to this TCB. Since this TCB
      * might get destroyed instead, we check the <tt>done</tt> flag after
      * waking up. If it is set, the TCB that woke us up is waiting for an
-     * acknowledgement in destroy(). Otherwise, we just set the current TCB to
+     * acknowledgement in destroy(), which is sent once this TCB has unwound
+     * back out of threadroot(). Otherwise, we just set the current TCB to
      * this TCB and return.
      */
     private void yield() {
 	waitForInterrupt();
 	
-	if (done) {
-	    currentTCB.interrupt();
+	if (done)
 	    throw new ThreadDeath();
-	}
 
 	currentTCB = this;
     }
@@ -287,7 +495,17 @@ public final class TCB {
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+	if (useVirtualThreads) {
+	    while (!running)
+		LockSupport.park(this);
+	}
+	else {
+	    waitOnMonitor();
+	}
+    }
+
+    private synchronized void waitOnMonitor() {
 	while (!running) {
 	    try { wait(); }
 	    catch (InterruptedException e) { }
@@ -300,7 +518,17 @@ public final class TCB {
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	if (useVirtualThreads) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	}
+	else {
+	    notifyMonitor();
+	}
+    }
+
+    private synchronized void notifyMonitor() {
 	running = true;
 	notify();
     }
@@ -326,6 +554,67 @@ public final class TCB {
 	toBeDestroyed = thread;
     }
 
+    /**
+     * A Java thread that runs TCBs. It runs the TCB it is first given, and
+     * when that TCB is destroyed, parks itself in <tt>idleCarriers</tt> (if
+     * there is room) until <tt>start()</tt> hands it another TCB. This way a
+     * short-lived thread does not cost a Java thread creation and teardown.
+     *
+     * <p>
+     * A carrier only touches the pool, and acknowledges <tt>destroy()</tt>,
+     * while the destroying TCB is waiting for it, so, like the rest of the
+     * TCB state, the pool is only ever used by one thread at a time.
+     */
+    private static class Carrier implements Runnable {
+	public void run() {
+	    while (true) {
+		TCB tcb = waitForTCB();
+		tcb.threadroot();
+
+		/* tcb has been destroyed. Pool ourselves before acknowledging
+		 * destroy(), since the destroyer may want us right away.
+		 */
+		boolean pooled = !useVirtualThreads &&
+		    idleCarriers.size() < poolSize;
+		if (pooled)
+		    idleCarriers.add(this);
+
+		currentTCB.interrupt();
+
+		if (!pooled)
+		    return;
+	    }
+	}
+
+	synchronized void assign(TCB tcb) {
+	    Lib.assertTrue(next == null);
+	    next = tcb;
+
+	    if (!started) {
+		started = true;
+		javaThread.start();
+	    }
+	    else {
+		notify();
+	    }
+	}
+
+	private synchronized TCB waitForTCB() {
+	    while (next == null) {
+		try { wait(); }
+		catch (InterruptedException e) { }
+	    }
+
+	    TCB tcb = next;
+	    next = null;
+	    return tcb;
+	}
+
+	Thread javaThread;
+	private TCB next = null;
+	private boolean started = false;
+    }
+
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
      * existence.
@@ -364,6 +653,33 @@ public final class TCB {
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
+    /**
+     * <tt>true</tt> if TCBs run on virtual threads. Set once, by
+     * <tt>givePrivilege()</tt>, before the first TCB starts.
+     */
+    private static boolean useVirtualThreads = false;
+
+    /**
+     * Carrier threads whose TCB was destroyed, waiting to be reused, and the
+     * most that will be kept (<tt>TCB.poolSize</tt>).
+     */
+    private static Vector<Carrier> idleCarriers = new Vector<Carrier>();
+    private static int poolSize;
+    private static Object virtualThreadBuilder;
+    private static Method virtualThreadUnstarted;
+
+    /**
+     * <tt>true</tt> if TCBs are continuations run by
+     * <tt>runContinuations()</tt>. Set once, by <tt>givePrivilege()</tt>.
+     */
+    private static boolean useContinuations = false;
+    private static Object continuationScope;
+    private static Constructor<?> continuationConstructor;
+    private static Method continuationRun;
+    private static Method continuationYield;
+    /** The TCB that <tt>runContinuations()</tt> should run next. */
+    private static TCB switchTarget = null;
+
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -386,9 +702,10 @@ public final class TCB {
      * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
-     * of the current TCB.
+     * of the current TCB. Volatile because, with virtual threads, there is no
+     * monitor to publish it.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +717,8 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+    /** The continuation running this TCB, when using continuations. */
+    private Object continuation = null;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -29,24 +29,16 @@ public class Alarm {
 	 * thread to yield, forcing a context switch if there is another thread
 	 * that should be run.
 	 * 
-	 * wakeUpList	queue of ThreadAndTime pairs that keeps track of what threads
-	 * 				are ready to be woken up (takes care of concurrent modification
-	 * 				error?)
+	 * waitingThreads is a heap ordered by wake time, so only the threads that
+	 * are due are looked at: the handler stops at the first one that isn't.
 	 */
 	public void timerInterrupt() {
-		Queue<ThreadAndTime<KThread,Long>> wakeUpList = new LinkedList<ThreadAndTime<KThread,Long>>();
-        // sup guiz
-
-		for (ThreadAndTime<KThread,Long> pair : waitingThreads) {
-			if (Machine.timer().getTime() >= pair.getTime()) {
-				((nachos.threads.KThread) pair.getThread()).ready();
-				wakeUpList.add(pair);
-			}
-		}
-		for (ThreadAndTime<KThread,Long> pair : wakeUpList) {
-			waitingThreads.remove(pair);
+		long currentTime = Machine.timer().getTime();
+
+		while (!waitingThreads.isEmpty() && waitingThreads.peek().getTime() <= currentTime) {
+			((nachos.threads.KThread) waitingThreads.poll().getThread()).ready();
 		}
-		wakeUpList.clear();
+		ThreadedKernel.scheduler.timerInterrupt();
 		KThread.yield();
 
 	}
@@ -71,8 +63,8 @@ public class Alarm {
 		// while (wakeTime > Machine.timer().getTime())
 		// KThread.yield();
 		long wakeTime = Machine.timer().getTime() + x;
-		waitingThreads.add(new ThreadAndTime<KThread,Long>(KThread.currentThread(), wakeTime));
 		boolean intStatus = Machine.interrupt().disable();
+		waitingThreads.add(new ThreadAndTime<KThread,Long>(KThread.currentThread(), wakeTime));
 		KThread.sleep();
 		Machine.interrupt().restore(intStatus);
 	}
@@ -332,8 +332,13 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
+			// the idle thread has nothing to do until the next interrupt
+			if (currentThread == idleThread)
+				Machine.interrupt().idle();
+
 			nextThread = idleThread;
+		}
 
 		nextThread.run();
 	}
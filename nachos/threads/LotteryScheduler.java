@@ -100,54 +100,177 @@ public class LotteryScheduler extends PriorityScheduler {
 		return true;
 	}
     
-    protected class LotteryQueue extends PriorityQueue{
+    /*
+     * The ticket accounting shared by the lottery and stride queues: the sum
+     * of the waiters' tickets, and its donation to the thread holding the
+     * resource. Subclasses keep the waiters and keep totalTickets current.
+     */
+    protected abstract class TicketQueue extends PriorityQueue{
     	
-    	LotteryQueue(boolean transferPriority) {
+    	TicketQueue(boolean transferPriority) {
 			super(transferPriority);
 		}
 
-		public KThread nextThread() {
-    		Lib.assertTrue(Machine.interrupt().disabled());
-    		if (threadWithResource != null) {
-    			LotteryThreadState previousThreadWithResource = (LotteryThreadState) threadWithResource;
-    			threadWithResource = null;
-    			previousThreadWithResource.resourceQueues.remove(this);
-    			previousThreadWithResource.updateEffectivePriority();			// this is important, cuz now he doesn't have lock so less donations
-    		}
-    		if (waitQueue.isEmpty()) {
-    			return null;
-    		}
+    	/*
+    	 * A ticket queue donates the sum of its waiters' tickets to the holder
+    	 */
+    	protected void updateDonation() {
+    		if (!transferPriority || threadWithResource == null)
+    			return;
+    		long delta = totalTickets - donatedTickets;
+    		if (delta == 0)
+    			return;
+    		donatedTickets = totalTickets;
+    		((LotteryThreadState) threadWithResource).changeDonatedTickets(delta);
+    	}
 
-    		threadWithResource = pickNextThread();
-    		this.waitQueue.remove(threadWithResource);
-    		threadWithResource.acquire(this);
-    		return threadWithResource.thread;
+    	protected void releaseResource() {
+    		if (donatedTickets != 0)
+    			((LotteryThreadState) threadWithResource).changeDonatedTickets(-donatedTickets);
+    		donatedTickets = 0;
+    		super.releaseResource();
     	}
+
+    	/** Sum of the waiters' tickets, which is what the queue donates. */
+    	protected long totalTickets = 0;
+    	/** What this queue currently donates to <tt>threadWithResource</tt>. */
+    	private long donatedTickets = 0;
+    }
+
+    /*
+     * Waiting threads live in slots of a Fenwick (binary indexed) tree over their
+     * ticket counts, so drawing a winner and changing one thread's tickets are
+     * both O(log n). Sums are longs, since tickets go up to Integer.MAX_VALUE.
+     */
+    protected class LotteryQueue extends TicketQueue{
+    	
+    	LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
     	
+    	/*
+    	 * Holds a lottery among the waiting threads: pick a ticket in
+    	 * [0, totalTickets) and walk down the tree to the slot that owns it.
+    	 */
     	protected LotteryThreadState pickNextThread() {
-    		if (waitQueue.isEmpty()) {
+    		if (isEmpty()) {
     			return null;
-    		} else {
-    			int totalTickets = 0;
-    			for (ThreadState threadState : waitQueue) {
-    				totalTickets += threadState.getEffectivePriority();
-    			}
-    			int randomNumber = (int) (Math.random() * totalTickets); //should range from 0-(totalTickets-1)
-    			LotteryThreadState nextThreadState = null;
-    			for (ThreadState threadState : waitQueue) {
-    				if (randomNumber < threadState.getEffectivePriority()) {
-    					nextThreadState = (LotteryThreadState) threadState;
-    					break;
-    				}
-    				randomNumber -= threadState.getEffectivePriority();
+    		}
+    		long winningTicket = (long) (Math.random() * totalTickets); //should range from 0-(totalTickets-1)
+    		if (winningTicket >= totalTickets)
+    			winningTicket = totalTickets - 1;
+
+    		int index = 0;
+    		for (int step = Integer.highestOneBit(capacity); step > 0; step >>= 1) {
+    			if (index + step <= capacity && tree[index + step] <= winningTicket) {
+    				index += step;
+    				winningTicket -= tree[index];
     			}
-    			return nextThreadState;
     		}
-    		// for loop should find a threadState to return....
+    		// index is now the number of slots whose tickets all lie below the winner
+    		return (LotteryThreadState) slots[index];
+    	}
+
+    	public boolean add(ThreadState threadState) {
+    		Lib.assertTrue(threadState.waitingOn == null);
+    		LotteryThreadState lotteryThreadState = (LotteryThreadState) threadState;
+
+    		int slot;
+    		if (freeSlotCount > 0) {
+    			slot = freeSlots[--freeSlotCount];
+    		} else {
+    			if (nextUnusedSlot == capacity)
+    				grow();
+    			slot = nextUnusedSlot++;
+    		}
+    		slots[slot] = lotteryThreadState;
+    		lotteryThreadState.slot = slot;
+    		lotteryThreadState.waitingOn = this;
+    		size++;
+    		addTickets(slot, lotteryThreadState.getEffectivePriority());
+    		updateDonation();
+    		return true;
+    	}
+
+    	protected boolean remove(ThreadState threadState) {
+    		if (threadState.waitingOn != this)
+    			return false;
+    		LotteryThreadState lotteryThreadState = (LotteryThreadState) threadState;
+
+    		int slot = lotteryThreadState.slot;
+    		addTickets(slot, -tickets[slot]);
+    		slots[slot] = null;
+    		freeSlots[freeSlotCount++] = slot;
+    		lotteryThreadState.waitingOn = null;
+    		size--;
+    		updateDonation();
+    		return true;
     	}
 
-    	//protected LinkedList<LotteryThreadState> waitQueue = new LinkedList<LotteryThreadState>();
-		//protected LotteryThreadState threadWithResource = null;
+    	protected void reposition(ThreadState threadState) {
+    		int slot = ((LotteryThreadState) threadState).slot;
+    		long delta = threadState.getEffectivePriority() - tickets[slot];
+    		if (delta == 0)
+    			return;
+    		addTickets(slot, delta);
+    		updateDonation();
+    	}
+
+    	public boolean isEmpty() {
+    		return size == 0;
+    	}
+
+    	public Iterator<ThreadState> iterator() {
+    		LinkedList<ThreadState> waiting = new LinkedList<ThreadState>();
+    		for (int slot = 0; slot < nextUnusedSlot; slot++) {
+    			if (slots[slot] != null)
+    				waiting.add(slots[slot]);
+    		}
+    		return waiting.iterator();
+    	}
+
+    	private void addTickets(int slot, long delta) {
+    		tickets[slot] += delta;
+    		totalTickets += delta;
+    		for (int i = slot + 1; i <= capacity; i += i & -i)
+    			tree[i] += delta;
+    	}
+
+    	/*
+    	 * Doubles the number of slots and rebuilds the tree in O(n)
+    	 */
+    	private void grow() {
+    		int newCapacity = capacity * 2;
+    		ThreadState[] newSlots = new ThreadState[newCapacity];
+    		long[] newTickets = new long[newCapacity];
+    		int[] newFreeSlots = new int[newCapacity];
+    		long[] newTree = new long[newCapacity + 1];
+    		System.arraycopy(slots, 0, newSlots, 0, capacity);
+    		System.arraycopy(tickets, 0, newTickets, 0, capacity);
+    		System.arraycopy(freeSlots, 0, newFreeSlots, 0, freeSlotCount);
+    		for (int i = 1; i <= newCapacity; i++) {
+    			newTree[i] += newTickets[i - 1];
+    			int parent = i + (i & -i);
+    			if (parent <= newCapacity)
+    				newTree[parent] += newTree[i];
+    		}
+    		slots = newSlots;
+    		tickets = newTickets;
+    		freeSlots = newFreeSlots;
+    		tree = newTree;
+    		capacity = newCapacity;
+    	}
+
+    	private int capacity = 8;
+    	private ThreadState[] slots = new ThreadState[capacity];
+    	/** tickets[i] is what slot i currently contributes to the tree. */
+    	private long[] tickets = new long[capacity];
+    	/** 1-based Fenwick tree over tickets. */
+    	private long[] tree = new long[capacity + 1];
+    	private int[] freeSlots = new int[capacity];
+    	private int freeSlotCount = 0;
+    	private int nextUnusedSlot = 0;
+    	private int size = 0;
     }
     
     protected class LotteryThreadState extends ThreadState { 
@@ -156,48 +279,27 @@ public class LotteryScheduler extends PriorityScheduler {
     		super(thread);
     	}
     	
-    	public void setPriority(int priority) {
-    		if (this.priority == priority) {
-    			return;
-    		}
-    		this.priority = priority;
-    		this.updateEffectivePriority();
-    		if (this.doneeList != null && this.doneeList.threadWithResource != null)
-    			this.doneeList.threadWithResource.updateEffectivePriority();
-    	}
-    	
-    	public void waitForAccess(PriorityQueue waitQueue) {
-    		if (waitQueue.threadWithResource == this) {
-    		  waitQueue.threadWithResource.resourceQueues.remove(waitQueue);
-    		  waitQueue.threadWithResource.updateEffectivePriority();
-    		  waitQueue.threadWithResource = null;
-    		}
-    		if (waitQueue.threadWithResource != null) { 
-    			waitQueue.threadWithResource.updateEffectivePriority();
-    			this.doneeList = waitQueue;
-    		}
-    		waitQueue.add(this);
-    	}
-    	
+    	/*
+    	 * Effective tickets are its own plus everything donated through the
+    	 * queues it holds, capped at Integer.MAX_VALUE.
+    	 */
     	public void updateEffectivePriority() {
-    		int ticketSum = this.priority;
-    		for (PriorityQueue resourceQueue : this.resourceQueues) {
-    			if (resourceQueue.transferPriority) {
-    				for (ThreadState threadState : resourceQueue) {
-    					ticketSum += threadState.getEffectivePriority();
-    				}
-    			}
-    		}
-    		
-    		this.cachedEffectivePriority = ticketSum;
-    		
-    		if (this.doneeList != null && this.doneeList.threadWithResource != null)
-    			this.doneeList.threadWithResource.updateEffectivePriority();
-    		
+    		long ticketSum = this.priority + donatedTickets;
+    		this.setCachedEffectivePriority((int) Math.min(ticketSum, Integer.MAX_VALUE));
+    	}
+
+    	/*
+    	 * One of the queues this thread holds changed its donation by delta
+    	 */
+    	protected void changeDonatedTickets(long delta) {
+    		donatedTickets += delta;
+    		this.updateEffectivePriority();
     	}
 
-//		protected LinkedList<LotteryThreadState> doneeList = new LinkedList<LotteryThreadState>();
-//		protected LinkedList<LotteryQueue> resourceQueues = new LinkedList<LotteryQueue>();
+    	/** Sum of the donations of every queue this thread holds. */
+    	private long donatedTickets = 0;
+    	/** This thread's slot in <tt>waitingOn</tt>. */
+    	private int slot;
     }
     
     
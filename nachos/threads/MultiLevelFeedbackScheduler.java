@@ -0,0 +1,292 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept in one FIFO per
+ * level, and the next thread to receive access is the one that has waited
+ * longest at the best (lowest numbered) occupied level.
+ *
+ * <p>
+ * Every thread starts at level 0. A thread that is still running when it has
+ * used up its quantum (<tt>2<sup>level</sup></tt> timer interrupts, counted
+ * through <tt>timerInterrupt()</tt>) is moved down a level, so CPU-bound
+ * threads sink. A thread that blocked (on a <tt>Semaphore</tt>, a
+ * <tt>Lock</tt>, the alarm, and so on) is moved up a level when it is woken,
+ * so interactive threads stay near the top. To keep the sunken threads from
+ * starving, every thread is moved back to level 0 every
+ * <tt>MultiLevelFeedbackScheduler.boostInterval</tt> ticks.
+ *
+ * <p>
+ * The number of levels is set by <tt>MultiLevelFeedbackScheduler.levels</tt>.
+ * This scheduler does not donate priority; <tt>transferPriority</tt> is
+ * ignored.
+ */
+public class MultiLevelFeedbackScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MultiLevelFeedbackScheduler() {
+	numLevels = Config.getInteger("MultiLevelFeedbackScheduler.levels", 3);
+	boostInterval = Config.getInteger("MultiLevelFeedbackScheduler.boostInterval",
+					  50 * Stats.TimerTicks);
+	Lib.assertTrue(numLevels >= 1 && numLevels <= 31);
+	Lib.assertTrue(boostInterval > 0);
+    }
+
+    /**
+     * Allocate a new multi-level feedback thread queue.
+     *
+     * @param	transferPriority	ignored.
+     * @return	a new multi-level feedback thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FeedbackQueue();
+    }
+
+    /**
+     * Return the level of the specified thread, which stands in for its
+     * priority (0 is the best level).
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Charge the current thread for one timer interrupt, moving it down a
+     * level if that uses up its quantum, and start a new boost period if the
+     * current one has elapsed.
+     */
+    public void timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	if (time - lastBoostTime >= boostInterval) {
+	    lastBoostTime = time;
+	    boostEpoch++;
+	}
+
+	ThreadState threadState = getThreadState(KThread.currentThread());
+	int level = threadState.getLevel();
+	if (++threadState.timerInterruptsUsed >= (1 << level)) {
+	    threadState.timerInterruptsUsed = 0;
+	    if (level < numLevels - 1)
+		threadState.level = level + 1;
+	}
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO per level.
+     */
+    protected class FeedbackQueue extends ThreadQueue {
+	/**
+	 * Add a thread to the end of the FIFO for its level. A thread that is
+	 * not the current thread is being woken after blocking, so it is moved
+	 * up a level first.
+	 *
+	 * @param	thread	the thread to append to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    catchUpBoost();
+
+	    ThreadState threadState = getThreadState(thread);
+	    int level = threadState.getLevel();
+	    if (thread != KThread.currentThread() && level > 0) {
+		threadState.level = level - 1;
+		threadState.timerInterruptsUsed = 0;
+	    }
+
+	    levels[threadState.getLevel()].add(thread);
+	}
+
+	/**
+	 * Remove the thread that has waited longest at the best occupied
+	 * level.
+	 *
+	 * @return	the next thread to receive access, or <tt>null</tt> if
+	 *		the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    catchUpBoost();
+
+	    for (int i=0; i<numLevels; i++) {
+		if (!levels[i].isEmpty())
+		    return levels[i].removeFirst();
+	    }
+	    return null;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Nothing is
+	 * donated, so there is nothing to do.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Print out the contents of the queue, best level first.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numLevels; i++) {
+		System.out.print("[" + i + "] ");
+		for (Iterator<KThread> i2=levels[i].iterator(); i2.hasNext(); )
+		    System.out.print(i2.next() + " ");
+	    }
+	}
+
+	/**
+	 * If a boost happened since this queue last looked, move every
+	 * waiting thread to level 0, keeping their relative order.
+	 */
+	private void catchUpBoost() {
+	    if (boostEpoch == queueEpoch)
+		return;
+	    queueEpoch = boostEpoch;
+
+	    for (int i=1; i<numLevels; i++) {
+		levels[0].addAll(levels[i]);
+		levels[i].clear();
+	    }
+	}
+
+	@SuppressWarnings("unchecked")
+	private LinkedList<KThread>[] levels =
+	    (LinkedList<KThread>[]) new LinkedList<?>[numLevels];
+	{
+	    for (int i=0; i<numLevels; i++)
+		levels[i] = new LinkedList<KThread>();
+	}
+	private int queueEpoch = boostEpoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level and how much of its
+     * quantum it has used.
+     */
+    protected class ThreadState {
+	/**
+	 * Return the level of the associated thread, which is 0 if there has
+	 * been a boost since it was last set.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	public int getLevel() {
+	    if (epoch != boostEpoch) {
+		epoch = boostEpoch;
+		level = 0;
+		timerInterruptsUsed = 0;
+	    }
+	    return level;
+	}
+
+	protected int level = 0;
+	protected int timerInterruptsUsed = 0;
+	private int epoch = boostEpoch;
+    }
+
+    /**
+     * Test this scheduler on a private instance, so that the scheduler the
+     * kernel is running is not disturbed. The threads are created but never
+     * run; the current thread stands in for the running thread.
+     */
+    public static void selfTest() {
+	System.out.println("\n Entering MultiLevelFeedbackScheduler.selfTest()");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread current = KThread.currentThread();
+	Object savedState = current.schedulingState;
+	current.schedulingState = null;
+
+	MultiLevelFeedbackScheduler scheduler = new MultiLevelFeedbackScheduler();
+	scheduler.numLevels = 3;
+	scheduler.boostInterval = Long.MAX_VALUE;
+	scheduler.lastBoostTime = Machine.timer().getTime();
+
+	System.out.println("\nTesting demotion after a full quantum:");
+	Lib.assertTrue(scheduler.getPriority(current) == 0);
+	scheduler.timerInterrupt();
+	Lib.assertTrue(scheduler.getPriority(current) == 1);
+	scheduler.timerInterrupt();
+	Lib.assertTrue(scheduler.getPriority(current) == 1);
+	scheduler.timerInterrupt();
+	Lib.assertTrue(scheduler.getPriority(current) == 2);
+	for (int i=0; i<8; i++)
+	    scheduler.timerInterrupt();
+	Lib.assertTrue(scheduler.getPriority(current) == 2);
+	System.out.println("levels 0, 1, 1, 2, then 2 at the bottom");
+
+	System.out.println("\nTesting promotion on waitForAccess():");
+	KThread sunk = new KThread().setName("sunk thread");
+	KThread fresh = new KThread().setName("fresh thread");
+	scheduler.getThreadState(sunk).level = 2;
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	queue.waitForAccess(sunk);
+	queue.waitForAccess(fresh);
+	queue.waitForAccess(current);
+	Lib.assertTrue(scheduler.getPriority(sunk) == 1);
+	Lib.assertTrue(scheduler.getPriority(fresh) == 0);
+	// the current thread is being preempted, not woken
+	Lib.assertTrue(scheduler.getPriority(current) == 2);
+	Lib.assertTrue(queue.nextThread() == fresh);
+	Lib.assertTrue(queue.nextThread() == sunk);
+	Lib.assertTrue(queue.nextThread() == current);
+	Lib.assertTrue(queue.nextThread() == null);
+	System.out.println("woken thread moved up to level 1, current thread stayed at 2");
+
+	System.out.println("\nTesting the boost from timerInterrupt():");
+	scheduler.getThreadState(sunk).level = 2;
+	queue.waitForAccess(current);
+	queue.waitForAccess(sunk);
+	Lib.assertTrue(scheduler.getPriority(sunk) == 1);
+	scheduler.boostInterval = 1;
+	scheduler.lastBoostTime = Machine.timer().getTime() - 1;
+	scheduler.timerInterrupt();
+	Lib.assertTrue(scheduler.getPriority(sunk) == 0);
+	// boosted to level 0, then charged for the interrupt
+	Lib.assertTrue(scheduler.getPriority(current) == 1);
+	Lib.assertTrue(queue.nextThread() == sunk);
+	Lib.assertTrue(queue.nextThread() == current);
+	Lib.assertTrue(queue.nextThread() == null);
+	System.out.println("waiting threads back at level 0");
+
+	current.schedulingState = savedState;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private int numLevels;
+    private long boostInterval;
+    private long lastBoostTime = 0;
+    /** Incremented on every boost; queues and threads catch up lazily. */
+    private int boostEpoch = 0;
+}
@@ -8,6 +8,7 @@ import java.util.LinkedList;
 import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -179,17 +180,14 @@ public class PriorityScheduler extends Scheduler {
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			if (threadWithResource != null) {
-				ThreadState previousThreadWithResource = threadWithResource;
-				threadWithResource = null;
-				previousThreadWithResource.resourceQueues.remove(this);
-				previousThreadWithResource.updateEffectivePriority();			// this is important, cuz now he doesnt have lock so less donations
-			}
+			if (threadWithResource != null)
+				releaseResource();			// this is important, cuz now he doesnt have lock so less donations
 
-			if (waitQueue.isEmpty())
+			if (isEmpty())
 				return null;
 
-			threadWithResource = waitQueue.poll();
+			threadWithResource = pickNextThread();
+			remove(threadWithResource);
 			threadWithResource.acquire(this);
 			return threadWithResource.thread;
 		}
@@ -202,33 +200,158 @@ public class PriorityScheduler extends Scheduler {
 		 *		return..
 		 */
 		protected ThreadState pickNextThread() {
-			if (waitQueue.isEmpty())
+			if (isEmpty())
 				return null;
-			return waitQueue.peek();
-
-
-
+			return bucketHeads[highestOccupiedPriority()];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			System.out.println("Thread With Resource has priority/effective priority: " + this.threadWithResource.getPriority() +"/" + this.threadWithResource.getEffectivePriority());
 			System.out.println("In waitQueue: ");
-			for (ThreadState threadState : this.waitQueue){
+			for (ThreadState threadState : this){
 				System.out.println(threadState.getPriority() + " " + threadState.getEffectivePriority() + " " + threadState.getTimeEnqueued());
 			}
 		}
 		/*
-		 * Added this method because I wasn't sure if PriorityQueue's waitQueue was accessable directly
+		 * Appends threadState to the FIFO for its effective priority. Threads
+		 * are kept in order of timeEnqueued within a bucket, so a thread that
+		 * is re-bucketed is slotted in behind any older waiters (searching
+		 * from the tail, which is where it almost always belongs).
 		 */
 		public boolean add(ThreadState threadState){
-			return this.waitQueue.add(threadState);
+			Lib.assertTrue(threadState.waitingOn == null);
+			link(threadState, threadState.getEffectivePriority());
+			threadState.waitingOn = this;
+			updateDonation();
+			return true;
 		}
 		/*
-		 * Made this so I can iterator through the PriorityQueue's waitQueue (didnt know i could access it directly, but what evs)
+		 * Unlinks threadState from this queue. Returns false if it was not waiting here.
+		 */
+		protected boolean remove(ThreadState threadState){
+			if (threadState.waitingOn != this)
+				return false;
+			unlink(threadState);
+			threadState.waitingOn = null;
+			updateDonation();
+			return true;
+		}
+		/*
+		 * Called when the effective priority of a thread waiting in this queue changes,
+		 * moves it to the bucket for its new effective priority
+		 */
+		protected void reposition(ThreadState threadState){
+			Lib.assertTrue(threadState.waitingOn == this);
+			if (threadState.queuedPriority == threadState.getEffectivePriority())
+				return;
+			unlink(threadState);
+			link(threadState, threadState.getEffectivePriority());
+			updateDonation();
+		}
+		public boolean isEmpty(){
+			return occupiedPriorities == 0;
+		}
+		/*
+		 * Iterates over the waiting threads from highest to lowest effective priority, oldest first
 		 */
 		public Iterator<ThreadState> iterator(){
-			return this.waitQueue.iterator();
+			return new BucketIterator();
+		}
+
+		/*
+		 * Takes the resource away from threadWithResource, along with whatever this queue was donating to it
+		 */
+		protected void releaseResource(){
+			ThreadState previousThreadWithResource = threadWithResource;
+			if (donation >= 0)
+				previousThreadWithResource.changeDonation(donation, -1);
+			donation = -1;
+			threadWithResource = null;
+			previousThreadWithResource.resourceQueues.remove(this);
+			previousThreadWithResource.updateEffectivePriority();
+		}
+
+		/*
+		 * Recomputes what this queue donates to threadWithResource (the highest effective priority
+		 * waiting here) and hands the holder the difference. This is the only way donations move,
+		 * so a change travels one hop at a time along waitingOn -> threadWithResource and stops at
+		 * the first queue or thread whose value comes out the same.
+		 */
+		protected void updateDonation(){
+			if (!transferPriority || threadWithResource == null)
+				return;
+			int newDonation = (occupiedPriorities == 0) ? -1 : highestOccupiedPriority();
+			if (newDonation == donation)
+				return;
+			int oldDonation = donation;
+			donation = newDonation;
+			threadWithResource.changeDonation(oldDonation, newDonation);
+		}
+
+		private int highestOccupiedPriority(){
+			return 31 - Integer.numberOfLeadingZeros(occupiedPriorities);
+		}
+
+		private void link(ThreadState threadState, int priority){
+			ThreadState previous = bucketTails[priority];
+			while (previous != null && previous.getTimeEnqueued() > threadState.getTimeEnqueued())
+				previous = previous.previousWaiter;
+
+			ThreadState next = (previous == null) ? bucketHeads[priority] : previous.nextWaiter;
+			threadState.previousWaiter = previous;
+			threadState.nextWaiter = next;
+			if (previous == null)
+				bucketHeads[priority] = threadState;
+			else
+				previous.nextWaiter = threadState;
+			if (next == null)
+				bucketTails[priority] = threadState;
+			else
+				next.previousWaiter = threadState;
+
+			threadState.queuedPriority = priority;
+			occupiedPriorities |= (1 << priority);
+		}
+
+		private void unlink(ThreadState threadState){
+			int priority = threadState.queuedPriority;
+			if (threadState.previousWaiter == null)
+				bucketHeads[priority] = threadState.nextWaiter;
+			else
+				threadState.previousWaiter.nextWaiter = threadState.nextWaiter;
+			if (threadState.nextWaiter == null)
+				bucketTails[priority] = threadState.previousWaiter;
+			else
+				threadState.nextWaiter.previousWaiter = threadState.previousWaiter;
+			threadState.previousWaiter = null;
+			threadState.nextWaiter = null;
+
+			if (bucketHeads[priority] == null)
+				occupiedPriorities &= ~(1 << priority);
+		}
+
+		private class BucketIterator implements Iterator<ThreadState> {
+			public boolean hasNext() {
+				return next != null;
+			}
+			public ThreadState next() {
+				if (next == null)
+					throw new NoSuchElementException();
+				ThreadState current = next;
+				next = current.nextWaiter;
+				if (next == null) {
+					int remaining = occupiedPriorities & ((1 << current.queuedPriority) - 1);
+					if (remaining != 0)
+						next = bucketHeads[31 - Integer.numberOfLeadingZeros(remaining)];
+				}
+				return current;
+			}
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			private ThreadState next = (occupiedPriorities == 0) ? null : bucketHeads[highestOccupiedPriority()];
 		}
 
 
@@ -238,8 +361,17 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public boolean transferPriority;
 
-		protected java.util.PriorityQueue<ThreadState> waitQueue = new java.util.PriorityQueue<ThreadState>();
+		/*
+		 * One FIFO per effective priority, threaded through ThreadState.previousWaiter/nextWaiter,
+		 * plus a bitmap with bit p set iff bucket p is non-empty. Enqueue, dequeue and
+		 * re-bucketing after a donation are all O(1) (priorities are bounded to 0..7).
+		 */
+		private ThreadState[] bucketHeads = new ThreadState[priorityMaximum+1];
+		private ThreadState[] bucketTails = new ThreadState[priorityMaximum+1];
+		private int occupiedPriorities = 0;
 		protected ThreadState threadWithResource = null;
+		/** What this queue currently donates to <tt>threadWithResource</tt>, or -1 for nothing. */
+		protected int donation = -1;
 		private long age = 0;
 	}
 
@@ -294,12 +426,6 @@ public class PriorityScheduler extends Scheduler {
 				return;
 			this.priority = priority;
 			this.updateEffectivePriority();
-			if (doneeList != null && doneeList.threadWithResource != null){
-				if (doneeList.threadWithResource.getEffectivePriority() < this.getEffectivePriority()){
-					doneeList.threadWithResource.updateEffectivePriority();
-				}
-			}
-
 		}
 
 		/**
@@ -322,18 +448,11 @@ public class PriorityScheduler extends Scheduler {
 		public void waitForAccess(PriorityQueue waitQueue) {
 			// implement me
 			this.setTimeEnqueued(waitQueue.age++);
-			if (waitQueue.threadWithResource == this){
-				waitQueue.threadWithResource.resourceQueues.remove(waitQueue);
-				waitQueue.threadWithResource.updateEffectivePriority();
-				waitQueue.threadWithResource = null;
-			}
-			if (waitQueue.threadWithResource != null) {
-				if (waitQueue.threadWithResource.getEffectivePriority() < this.getEffectivePriority())
-					//				waitQueue.threadWithResource.cachedEffectivePriority = this.getEffectivePriority();
-					waitQueue.threadWithResource.updateEffectivePriority();		// JUST IN CASE, actually yea kinda need it
+			if (waitQueue.threadWithResource == this)
+				waitQueue.releaseResource();
+			if (waitQueue.threadWithResource != null)
 				this.doneeList = waitQueue;
-			}
-			waitQueue.add(this);
+			waitQueue.add(this);		// donates to the holder, if there is one
 		}
 
 		/**
@@ -353,10 +472,12 @@ public class PriorityScheduler extends Scheduler {
 		public void acquire(PriorityQueue waitQueue) {
 			this.resourceQueues.add(waitQueue);
 			waitQueue.threadWithResource = this;
+			waitQueue.donation = -1;
 			if (doneeList == waitQueue)
 				doneeList = null;
 	//		if (this.doneeList.contains(waitQueue))		//NOT SURE IF NECESSARY
 	//			this.doneeList.remove(waitQueue);		//NOT SURE IF NECESSARY, MAKES NO SENSE
+			waitQueue.updateDonation();
 			this.updateEffectivePriority();
 		}	
 		/*
@@ -372,34 +493,42 @@ public class PriorityScheduler extends Scheduler {
 			this.timeEnqueued = timeEnqueued;
 		}
 		/*
-		 * Thread takes the max of hte effective priorities of all of the threads waiting for the resource that itself has,
-		 * and sets its own effective priority as that value or its own priority, whichever is greater
-		 * 
-		 * Also, since its effective priority changes, whoever is receiving donations from it might need to change its effective priority
+		 * Thread takes the max of the donations from the resources it holds (kept as a count per
+		 * priority, so the max is one bit scan) and its own priority.
+		 *
+		 * If that changes its effective priority, setCachedEffectivePriority moves it within the
+		 * queue it is waiting on, and that queue passes the change on to its holder. Nothing is
+		 * recomputed once a value comes out unchanged.
 		 */
 		public void updateEffectivePriority(){
-			// do we even need a list of the donors? (how bout just values)
-			int maxDonorPriority = -1;
-
-			for (PriorityQueue resourceQueue : this.resourceQueues){
-				if (resourceQueue.transferPriority) {
-					for (ThreadState threadState : resourceQueue) {
-						Lib.assertTrue(threadState != this);
-						if (maxDonorPriority < threadState.getEffectivePriority())
-							maxDonorPriority = threadState.getEffectivePriority();
-					}
-				}
-			}
+			int effectivePriority = this.priority;
+			if (donationBitmap != 0)
+				effectivePriority = Math.max(effectivePriority, 31 - Integer.numberOfLeadingZeros(donationBitmap));
+			this.setCachedEffectivePriority(effectivePriority);
+		}
 
+		/*
+		 * One of the queues this thread holds changed its donation from oldDonation to newDonation
+		 * (-1 meaning none)
+		 */
+		protected void changeDonation(int oldDonation, int newDonation){
+			if (oldDonation >= 0 && --donationCounts[oldDonation] == 0)
+				donationBitmap &= ~(1 << oldDonation);
+			if (newDonation >= 0 && donationCounts[newDonation]++ == 0)
+				donationBitmap |= (1 << newDonation);
+			this.updateEffectivePriority();
+		}
 
-			if (this.priority < maxDonorPriority) 
-				this.cachedEffectivePriority = maxDonorPriority;
-			else 
-				this.cachedEffectivePriority = this.priority;	
-			if (this.doneeList != null && this.doneeList.threadWithResource != null){
-				if (this.doneeList.threadWithResource.getEffectivePriority() < this.getEffectivePriority())
-					this.doneeList.threadWithResource.updateEffectivePriority();
-			}
+		/*
+		 * Caches a new effective priority, and if this thread is sitting in a queue
+		 * tells the queue so it can move it to the right place
+		 */
+		protected void setCachedEffectivePriority(int effectivePriority){
+			if (this.cachedEffectivePriority == effectivePriority)
+				return;
+			this.cachedEffectivePriority = effectivePriority;
+			if (this.waitingOn != null)
+				this.waitingOn.reposition(this);
 		}
 
 		/*
@@ -426,6 +555,17 @@ public class PriorityScheduler extends Scheduler {
 		protected LinkedList<PriorityQueue> resourceQueues = new LinkedList<PriorityQueue>();
 		private long timeEnqueued;
 		protected int cachedEffectivePriority;
+
+		/** Number of held queues donating each priority, and a bitmap of the non-zero counts. */
+		private int[] donationCounts = new int[priorityMaximum+1];
+		private int donationBitmap = 0;
+
+		/** The queue this thread is currently waiting in, if any. */
+		protected PriorityQueue waitingOn = null;
+		/** The bucket of <tt>waitingOn</tt> this thread is linked into. */
+		protected int queuedPriority;
+		protected ThreadState previousWaiter = null;
+		protected ThreadState nextWaiter = null;
 	}
 	/*
 	 * 
@@ -154,4 +154,13 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Called by the alarm's timer interrupt handler, with interrupts
+     * disabled, just before it preempts the current thread. Schedulers that
+     * account for how threads use the CPU can charge the current thread here;
+     * by default this does nothing.
+     */
+    public void timerInterrupt() {
+    }
 }
@@ -0,0 +1,284 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A scheduler that gives threads a proportional share deterministically.
+ *
+ * <p>
+ * A stride scheduler gives threads tickets and donates them through locks
+ * and joins exactly like a lottery scheduler, but instead of holding a
+ * lottery it gives each thread a <i>stride</i> inversely proportional to its
+ * tickets. Each queue keeps a virtual time, and a thread that starts waiting
+ * is given a <i>pass</i> one stride past the queue's current virtual time.
+ * The waiting thread with the lowest pass is dequeued next (ties go to the
+ * thread that has waited longest), and the queue's virtual time advances to
+ * its pass.
+ *
+ * <p>
+ * A thread with twice the tickets of another is therefore dequeued twice as
+ * often, just as with the lottery, but without any randomness. Select it with
+ * <tt>ThreadedKernel.scheduler = nachos.threads.StrideScheduler</tt>.
+ */
+public class StrideScheduler extends LotteryScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    protected StrideThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideThreadState(thread);
+
+	return (StrideThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The stride of a thread with one ticket. Large enough that a thread
+     * holding <tt>Integer.MAX_VALUE</tt> tickets still has a non-zero stride.
+     */
+    public static final long stride1 = 1L << 32;
+
+    /**
+     * Test this scheduler on a private instance, so that the scheduler the
+     * kernel is running is not disturbed. The threads are created but never
+     * run.
+     */
+    public static void selfTest() {
+	System.out.println("\n Entering StrideScheduler.selfTest()");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	StrideScheduler scheduler = new StrideScheduler();
+
+	System.out.println("\nTesting proportional share with 1, 2 and 4 tickets:");
+	KThread[] threads = new KThread[3];
+	int[] picks = new int[3];
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	for (int i=0; i<3; i++) {
+	    threads[i] = new KThread().setName("stride thread " + i);
+	    scheduler.setPriority(threads[i], 1 << i);
+	    queue.waitForAccess(threads[i]);
+	}
+	for (int round=0; round<4; round++) {
+	    for (int j=0; j<7; j++) {
+		KThread thread = queue.nextThread();
+		for (int i=0; i<3; i++) {
+		    if (thread == threads[i])
+			picks[i]++;
+		}
+		queue.waitForAccess(thread);
+	    }
+
+	    // every 7 picks is exactly one stride of the 1-ticket thread
+	    for (int i=0; i<3; i++)
+		Lib.assertTrue(picks[i] == (round+1) << i);
+	}
+	System.out.println("picked " + picks[0] + ", " + picks[1] + " and " +
+			   picks[2] + " times in 28 picks");
+
+	System.out.println("\nTesting the stride after a donation:");
+	KThread holder = new KThread().setName("holder");
+	KThread other = new KThread().setName("other");
+	KThread donor = new KThread().setName("donor");
+	scheduler.setPriority(donor, 3);
+	ThreadQueue lock = scheduler.newThreadQueue(true);
+	ThreadQueue readyQueue = scheduler.newThreadQueue(false);
+	lock.acquire(holder);
+	readyQueue.waitForAccess(other);
+	readyQueue.waitForAccess(holder);
+
+	StrideThreadState holderState = scheduler.getThreadState(holder);
+	Lib.assertTrue(holderState.pass == holderState.passBase + stride1);
+
+	// holder now has 4 tickets, so a quarter of the stride from the time
+	// it started waiting, and overtakes the thread queued before it
+	lock.waitForAccess(donor);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == 4);
+	Lib.assertTrue(holderState.getStride() == stride1 / 4);
+	Lib.assertTrue(holderState.pass == holderState.passBase + stride1 / 4);
+	Lib.assertTrue(readyQueue.nextThread() == holder);
+	Lib.assertTrue(readyQueue.nextThread() == other);
+	System.out.println("holder's stride recomputed for 4 tickets");
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that orders threads by pass, in a binary heap.
+     */
+    protected class StrideQueue extends TicketQueue {
+	StrideQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	protected StrideThreadState pickNextThread() {
+	    if (isEmpty())
+		return null;
+
+	    return heap[0];
+	}
+
+	/*
+	 * The dequeued thread's pass becomes the queue's virtual time, so
+	 * threads that start waiting later are placed relative to it.
+	 */
+	protected boolean remove(ThreadState threadState) {
+	    if (threadState.waitingOn != this)
+		return false;
+	    StrideThreadState strideThreadState = (StrideThreadState) threadState;
+
+	    if (strideThreadState.heapIndex == 0)
+		virtualTime = Math.max(virtualTime, strideThreadState.pass);
+
+	    int index = strideThreadState.heapIndex;
+	    StrideThreadState last = heap[--size];
+	    heap[size] = null;
+	    if (index < size) {
+		heap[index] = last;
+		last.heapIndex = index;
+		siftDown(index);
+		siftUp(last.heapIndex);
+	    }
+
+	    totalTickets -= strideThreadState.queuedTickets;
+	    strideThreadState.waitingOn = null;
+	    updateDonation();
+	    return true;
+	}
+
+	public boolean add(ThreadState threadState) {
+	    Lib.assertTrue(threadState.waitingOn == null);
+	    StrideThreadState strideThreadState = (StrideThreadState) threadState;
+
+	    if (size == heap.length)
+		heap = Arrays.copyOf(heap, size * 2);
+
+	    strideThreadState.passBase = virtualTime;
+	    strideThreadState.queuedTickets = strideThreadState.getEffectivePriority();
+	    strideThreadState.pass = virtualTime + strideThreadState.getStride();
+	    strideThreadState.waitingOn = this;
+	    heap[size] = strideThreadState;
+	    strideThreadState.heapIndex = size;
+	    siftUp(size++);
+
+	    totalTickets += strideThreadState.queuedTickets;
+	    updateDonation();
+	    return true;
+	}
+
+	/*
+	 * A waiting thread's tickets changed (usually through a donation), so
+	 * recompute its stride from the time it started waiting.
+	 */
+	protected void reposition(ThreadState threadState) {
+	    StrideThreadState strideThreadState = (StrideThreadState) threadState;
+	    long delta = strideThreadState.getEffectivePriority() - strideThreadState.queuedTickets;
+	    if (delta == 0)
+		return;
+
+	    strideThreadState.queuedTickets += delta;
+	    strideThreadState.pass = strideThreadState.passBase + strideThreadState.getStride();
+	    siftUp(strideThreadState.heapIndex);
+	    siftDown(strideThreadState.heapIndex);
+
+	    totalTickets += delta;
+	    updateDonation();
+	}
+
+	public boolean isEmpty() {
+	    return size == 0;
+	}
+
+	public Iterator<ThreadState> iterator() {
+	    return Arrays.<ThreadState>asList(Arrays.copyOf(heap, size)).iterator();
+	}
+
+	private void siftUp(int index) {
+	    StrideThreadState threadState = heap[index];
+	    while (index > 0) {
+		int parent = (index - 1) / 2;
+		if (!before(threadState, heap[parent]))
+		    break;
+		heap[index] = heap[parent];
+		heap[index].heapIndex = index;
+		index = parent;
+	    }
+	    heap[index] = threadState;
+	    threadState.heapIndex = index;
+	}
+
+	private void siftDown(int index) {
+	    StrideThreadState threadState = heap[index];
+	    while (true) {
+		int child = 2 * index + 1;
+		if (child >= size)
+		    break;
+		if (child + 1 < size && before(heap[child + 1], heap[child]))
+		    child++;
+		if (!before(heap[child], threadState))
+		    break;
+		heap[index] = heap[child];
+		heap[index].heapIndex = index;
+		index = child;
+	    }
+	    heap[index] = threadState;
+	    threadState.heapIndex = index;
+	}
+
+	private boolean before(StrideThreadState a, StrideThreadState b) {
+	    if (a.pass != b.pass)
+		return a.pass < b.pass;
+	    return a.getTimeEnqueued() < b.getTimeEnqueued();
+	}
+
+	private StrideThreadState[] heap = new StrideThreadState[8];
+	private int size = 0;
+	/** The pass of the thread most recently dequeued. */
+	private long virtualTime = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under stride scheduling: its tickets
+     * and donations as for a lottery, plus its pass in the queue it is waiting
+     * on.
+     */
+    protected class StrideThreadState extends LotteryThreadState {
+	public StrideThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Return the stride of the associated thread, based on its effective
+	 * tickets.
+	 *
+	 * @return	the stride of the associated thread.
+	 */
+	public long getStride() {
+	    return stride1 / Math.max(getEffectivePriority(), 1);
+	}
+
+	/** The queue's virtual time when this thread started waiting. */
+	private long passBase;
+	private long pass;
+	/** The tickets this thread had when it was last placed in the heap. */
+	private long queuedTickets;
+	private int heapIndex;
+    }
+}
@@ -57,6 +57,8 @@ public class ThreadedKernel extends Kernel {
 	//	Alarm.selfTest();
 //		PriorityScheduler.selfTest();
 		LotteryScheduler.selfTest();
+		MultiLevelFeedbackScheduler.selfTest();
+		StrideScheduler.selfTest();
 	//	Boat.selfTest();
 		//Communicator.selfTest();
 
@@ -91,4 +93,6 @@ public class ThreadedKernel extends Kernel {
 	private static Communicator dummy5 = null;
 	private static Rider dummy6 = null;
 	private static ElevatorController dummy7 = null;
+	private static StrideScheduler dummy8 = null;
+	private static MultiLevelFeedbackScheduler dummy9 = null;
 }
@@ -0,0 +1,284 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.ag.AutoGrader;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of executables, so that running the same program again does not
+ * have to parse its headers or read its sections from the file system.
+ *
+ * <p>
+ * An executable is cached under its file name, along with its length and
+ * its file header. The file system has no modification times, so these are
+ * what is checked when the executable is opened again; if either differs,
+ * the cached copy is thrown away. Section pages are cached as they are
+ * first loaded. The cache holds at most a fixed number of pages, dropping
+ * the least recently used executables to make room.
+ *
+ * <p>
+ * Serving a cached page bypasses the <tt>Coff</tt> loader and the file
+ * system, so a page fault can load it instantaneously. <tt>Coff</tt> forbids
+ * exactly this, because the autograder relies on sections being loaded
+ * through it. The cache is therefore disabled by default, and cannot be
+ * enabled when an autograder other than the default one is running.
+ */
+public class CoffCache {
+	/**
+	 * Allocate a new executable cache.
+	 *
+	 * @param	capacity	the most section pages to hold, or 0 to disable
+	 *				caching. Caching is disabled regardless under
+	 *				a non-default autograder.
+	 */
+	public CoffCache(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		if (capacity > 0 &&
+				Machine.autoGrader().getClass() != AutoGrader.class) {
+			Lib.debug(dbgCache, "\tnot caching executables under an autograder");
+			capacity = 0;
+		}
+
+		this.capacity = capacity;
+		lock = new Lock();
+	}
+
+	/**
+	 * Load the executable in the specified file, using the cached copy if it
+	 * is still current. The file becomes the property of the returned loader,
+	 * as with <tt>new Coff(file)</tt>.
+	 *
+	 * @param	file	the file containing the executable.
+	 * @return	a loader for the executable.
+	 * @exception	EOFException	if the executable is corrupt.
+	 */
+	public Coff open(OpenFile file) throws EOFException {
+		if (capacity == 0)
+			return new Coff(file);
+
+		String name = file.getName();
+		int length = file.length();
+
+		lock.acquire();
+		Image image = images.get(name);
+		lock.release();
+
+		if (image != null) {
+			byte[] header = new byte[headerLength];
+			if (length != image.length ||
+					file.read(0, header, 0, headerLength) != headerLength ||
+					!Arrays.equals(header, image.header)) {
+				Lib.debug(dbgCache, "\tstale copy of " + name);
+
+				lock.acquire();
+				if (images.get(name) == image)
+					remove(name);
+				lock.release();
+
+				image = null;
+			}
+			else {
+				Lib.debug(dbgCache, "\tusing cached copy of " + name);
+			}
+		}
+
+		if (image != null)
+			return new CachedCoff(file, null, image);
+
+		Coff coff = new Coff(file);
+
+		byte[] header = new byte[headerLength];
+		if (file.read(0, header, 0, headerLength) != headerLength)
+			return coff;
+
+		image = new Image(name, length, header, coff);
+
+		lock.acquire();
+		if (images.containsKey(name))
+			remove(name);
+		images.put(name, image);
+		lock.release();
+
+		return new CachedCoff(file, coff, image);
+	}
+
+	/**
+	 * Remember a page of a cached executable, dropping the least recently
+	 * used executables if the cache is now over capacity.
+	 */
+	private void addPage(Image image, int s, int spn, byte[] page) {
+		lock.acquire();
+
+		if (images.get(image.name) == image && image.pages[s][spn] == null) {
+			image.pages[s][spn] = page;
+			image.numPages++;
+			numPages++;
+
+			Iterator<Image> i = images.values().iterator();
+			while (numPages > capacity && i.hasNext()) {
+				Image eldest = i.next();
+				Lib.debug(dbgCache, "\tdropping " + eldest.name);
+
+				numPages -= eldest.numPages;
+				i.remove();
+			}
+		}
+
+		lock.release();
+	}
+
+	private void remove(String name) {
+		numPages -= images.remove(name).numPages;
+	}
+
+	/**
+	 * The parts of an executable that are kept between runs.
+	 */
+	private static class Image {
+		Image(String name, int length, byte[] header, Coff coff) {
+			this.name = name;
+			this.length = length;
+			this.header = header;
+
+			entryPoint = coff.getEntryPoint();
+
+			int numSections = coff.getNumSections();
+			sectionNames = new String[numSections];
+			executable = new boolean[numSections];
+			readOnly = new boolean[numSections];
+			firstVPNs = new int[numSections];
+			pages = new byte[numSections][][];
+
+			for (int s=0; s<numSections; s++) {
+				CoffSection section = coff.getSection(s);
+				sectionNames[s] = section.getName();
+				// CoffSection does not say whether a section holds code, but
+				// the Nachos toolchain only puts code in .text
+				executable[s] = section.getName().equals(".text");
+				readOnly[s] = section.isReadOnly();
+				firstVPNs[s] = section.getFirstVPN();
+				pages[s] = new byte[section.getLength()][];
+			}
+		}
+
+		String name;
+		int length;
+		byte[] header;
+
+		int entryPoint;
+		String[] sectionNames;
+		boolean[] executable, readOnly;
+		int[] firstVPNs;
+
+		/** The contents of each section page, or <tt>null</tt> if not
+		 *  cached yet. */
+		byte[][][] pages;
+		int numPages = 0;
+	}
+
+	/**
+	 * A loader that serves section pages from the cache, falling back to the
+	 * file for pages that are not cached yet.
+	 */
+	private class CachedCoff extends Coff {
+		CachedCoff(OpenFile file, Coff fileCoff, Image image) {
+			this.file = file;
+			this.fileCoff = fileCoff;
+			this.image = image;
+
+			entryPoint = image.entryPoint;
+			sections = new CoffSection[image.pages.length];
+			for (int s=0; s<sections.length; s++)
+				sections[s] = new CachedCoffSection(this, s);
+		}
+
+		public int getEntryPoint() {
+			return entryPoint;
+		}
+
+		public void close() {
+			if (fileCoff != null)
+				fileCoff.close();
+			else
+				file.close();
+
+			sections = null;
+		}
+
+		/**
+		 * Load a page that is not cached from the file, and add it to the
+		 * cache.
+		 */
+		void loadPage(int s, int spn, int ppn) {
+			if (fileCoff == null) {
+				try {
+					fileCoff = new Coff(file);
+				}
+				catch (EOFException e) {
+					Lib.assertNotReached("cached executable changed");
+				}
+			}
+
+			fileCoff.getSection(s).loadPage(spn, ppn);
+
+			byte[] page = new byte[Processor.pageSize];
+			Machine.processor().readMemory(ppn*Processor.pageSize, page, 0,
+					Processor.pageSize);
+			addPage(image, s, spn, page);
+		}
+
+		OpenFile file;
+		Coff fileCoff;
+		Image image;
+	}
+
+	/**
+	 * A section of a cached executable.
+	 */
+	private class CachedCoffSection extends CoffSection {
+		CachedCoffSection(CachedCoff coff, int s) {
+			super(coff, coff.image.sectionNames[s], coff.image.executable[s],
+					coff.image.readOnly[s], coff.image.pages[s].length,
+					coff.image.firstVPNs[s]);
+
+			this.s = s;
+		}
+
+		public void loadPage(int spn, int ppn) {
+			Lib.assertTrue(spn>=0 && spn<numPages);
+			Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+
+			CachedCoff cachedCoff = (CachedCoff) coff;
+			byte[] page = cachedCoff.image.pages[s][spn];
+
+			if (page != null)
+				Machine.processor().writeMemory(ppn*Processor.pageSize, page, 0,
+						Processor.pageSize);
+			else
+				cachedCoff.loadPage(s, spn, ppn);
+		}
+
+		private int s;
+	}
+
+	private int capacity;
+	private Lock lock;
+
+	/** The cached executables, least recently used first. */
+	private LinkedHashMap<String, Image> images =
+		new LinkedHashMap<String, Image>(16, 0.75f, true);
+	/** The number of section pages cached. */
+	private int numPages = 0;
+
+	/** The length of the COFF file header and a.out header. */
+	private static final int headerLength = 48;
+
+	private static final char dbgCache = 'c';
+}
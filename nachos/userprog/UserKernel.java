@@ -30,6 +30,7 @@ public class UserKernel extends ThreadedKernel {
 		freePhysicalPagesLock = new Lock();
 		for (int i=0; i<numPhysPages; i++)
 			freePhysicalPages.addLast(new Integer(i));
+		coffCache = new CoffCache(Config.getInteger("UserKernel.coffCacheSize", 0));
 		console = new SynchConsole(Machine.console());
 
 		Machine.processor().setExceptionHandler(new Runnable() {
@@ -121,6 +122,9 @@ public class UserKernel extends ThreadedKernel {
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** The cache of recently run executables. */
+	public static CoffCache coffCache;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 	
@@ -151,7 +151,7 @@ public class UserProcess {
 			handleExit(-2);
 		}
 		
-		byte[] memory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
 		int startVAddr = vaddr;
 		int startOffset = vaddr % pageSize;
 		int endVAddr = Math.min(startVAddr + length, pageTable.length*pageSize);
@@ -166,9 +166,9 @@ public class UserProcess {
 				return length-leftToRead;
 			int PPN = PTE.ppn;
 			if (i == startVPN) 
-				System.arraycopy(memory, PPN*pageSize+startOffset, data, offset, Math.min(leftToRead, pageSize));
+				processor.readMemory(PPN*pageSize+startOffset, data, offset, Math.min(leftToRead, pageSize));
 			else 
-				System.arraycopy(memory, PPN*pageSize, data, offset, Math.min(leftToRead, pageSize));
+				processor.readMemory(PPN*pageSize, data, offset, Math.min(leftToRead, pageSize));
 			PTE.used = true;
 			leftToRead -= Math.min(leftToRead, pageSize);
 			offset += Math.min(leftToRead, pageSize);
@@ -212,7 +212,7 @@ public class UserProcess {
 			this.exitingAbnormally = true;
 			handleExit(-2);
 		}
-		byte[] memory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
 
 		int startVAddr = vaddr + offset;
 		int startOffset = (vaddr + offset) % Processor.pageSize;
@@ -228,9 +228,9 @@ public class UserProcess {
 				return length - leftToWrite; 			
 			int PPN = PTE.ppn;
 			if (i == startVPN)
-				System.arraycopy( data,offset,memory, PPN*pageSize+startOffset, Math.min(leftToWrite, pageSize));
+				processor.writeMemory(PPN*pageSize+startOffset, data, offset, Math.min(leftToWrite, pageSize));
 			else
-				System.arraycopy(data, offset,memory,PPN*pageSize, Math.min(leftToWrite, pageSize));
+				processor.writeMemory(PPN*pageSize, data, offset, Math.min(leftToWrite, pageSize));
 			PTE.dirty = true;
 			PTE.used = true;
 			leftToWrite -= Math.min(leftToWrite, pageSize);
@@ -259,7 +259,7 @@ public class UserProcess {
 		}
 
 		try {
-			coff = new Coff(executable);
+			coff = UserKernel.coffCache.open(executable);
 		}
 		catch (EOFException e) {
 			executable.close();
@@ -573,7 +573,7 @@ public class UserProcess {
 		}
 		if (filename.length() < 6 ||  filename.substring(filename.length()-5) == ".coff") //file name has to end with .coff
 			return -1;
-		UserProcess child = new UserProcess();
+		UserProcess child = newUserProcess();
 		this.childrenExitStatuses.put(child.processID, null);
 		this.childrenProcesses.add(child);
 		child.parentProcess = this;
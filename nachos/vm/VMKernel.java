@@ -5,6 +5,10 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -21,6 +25,19 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	invertedPageTable = new Frame[numPhysPages];
+	for (int i=0; i<numPhysPages; i++)
+	    invertedPageTable[i] = new Frame();
+	frameUnpinned = new Condition2(freePhysicalPagesLock);
+
+	swapBatchPages = Config.getInteger("VMKernel.swapBatchPages", 8);
+	Lib.assertTrue(swapBatchPages >= 1);
+
+	// opening the file blocks, so do it now rather than while evicting
+	swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
+	Lib.assertTrue(swapFile != null, "unable to open swap file");
     }
 
     /**
@@ -41,9 +58,711 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swapFile.close();
+	ThreadedKernel.fileSystem.remove(swapFileName);
+
 	super.terminate();
     }
 
+    /**
+     * Allocate a physical page to hold the specified virtual page of a
+     * process. A free page is used if there is one; otherwise a page is
+     * evicted using the clock algorithm. If every page is pinned, the
+     * process gives up the pages it has pinned itself and waits for one to
+     * be unpinned. The returned page is pinned, so it will not be chosen for
+     * eviction until <tt>unpinFrame()</tt> is called.
+     *
+     * @param	process	the process that will own the page.
+     * @param	vpn	the virtual page that will be stored in the page.
+     * @return	the physical page number.
+     */
+    public static int allocateFrame(VMProcess process, int vpn) {
+	freePhysicalPagesLock.acquire();
+
+	int ppn;
+	while ((ppn = takeFrame()) == -1)
+	    waitForFrame(process);
+
+	Frame frame = invertedPageTable[ppn];
+	frame.owners.add(process);
+	frame.vpn = vpn;
+	frame.pinCount = 1;
+
+	freePhysicalPagesLock.release();
+
+	flushSwapWrites();
+
+	return ppn;
+    }
+
+    /**
+     * Wait until some page is unpinned. Any pages the process holds pinned
+     * for its current instruction are unpinned first, so that processes
+     * waiting here never keep each other from making progress. The caller
+     * must hold <tt>freePhysicalPagesLock</tt>.
+     *
+     * @param	process	the process that needs a page.
+     */
+    private static void waitForFrame(VMProcess process) {
+	Lib.debug(dbgVM, "\twaiting for a page to be unpinned");
+
+	for (int ppn : process.takeHeldFrames()) {
+	    numHeldFrames--;
+	    unpin(ppn);
+	}
+
+	frameUnpinned.sleep();
+    }
+
+    /**
+     * Pin the physical page holding a virtual page of a process, if that page
+     * is in memory.
+     *
+     * @param	process	the process.
+     * @param	vpn	the virtual page number.
+     * @return	the physical page number, or -1 if the page is not in memory.
+     */
+    public static int pinFrame(VMProcess process, int vpn) {
+	freePhysicalPagesLock.acquire();
+
+	int ppn = -1;
+	TranslationEntry entry = process.getPageTableEntry(vpn);
+	if (entry.valid) {
+	    ppn = entry.ppn;
+	    invertedPageTable[ppn].pinCount++;
+	}
+
+	freePhysicalPagesLock.release();
+
+	return ppn;
+    }
+
+    /**
+     * Take a page off the free list, or evict one if the list is empty. The
+     * caller must hold <tt>freePhysicalPagesLock</tt>.
+     *
+     * @return	the physical page number, or -1 if no page can be evicted.
+     */
+    private static int takeFrame() {
+	if (!freePhysicalPages.isEmpty())
+	    return freePhysicalPages.removeFirst();
+	else
+	    return evictFrame();
+    }
+
+    /**
+     * Undo one pin of a page pinned by <tt>allocateFrame()</tt> or
+     * <tt>pinFrame()</tt>. The page can be evicted once every pin is undone.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public static void unpinFrame(int ppn) {
+	freePhysicalPagesLock.acquire();
+	unpin(ppn);
+	freePhysicalPagesLock.release();
+    }
+
+    /**
+     * Keep a pinned page pinned until the instruction that faulted on it has
+     * been retried, unless that would leave too few pages to evict. The page
+     * is unpinned if it cannot be held.
+     *
+     * @param	ppn	the physical page number, which must be pinned.
+     * @return	<tt>true</tt> if the page is held and stays pinned.
+     */
+    public static boolean holdFrame(int ppn) {
+	freePhysicalPagesLock.acquire();
+
+	boolean held = (numHeldFrames < invertedPageTable.length-1);
+	if (held)
+	    numHeldFrames++;
+	else
+	    unpin(ppn);
+
+	freePhysicalPagesLock.release();
+
+	return held;
+    }
+
+    /**
+     * Unpin a page held by <tt>holdFrame()</tt>.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public static void releaseHeldFrame(int ppn) {
+	freePhysicalPagesLock.acquire();
+	numHeldFrames--;
+	unpin(ppn);
+	freePhysicalPagesLock.release();
+    }
+
+    private static void unpin(int ppn) {
+	Frame frame = invertedPageTable[ppn];
+	Lib.assertTrue(frame.pinCount > 0);
+
+	if (--frame.pinCount == 0)
+	    frameUnpinned.wakeAll();
+    }
+
+    /**
+     * Stop a process from mapping a physical page, returning the page to the
+     * free list if no other process shares it.
+     *
+     * @param	process	the process giving up the page.
+     * @param	ppn	the physical page number.
+     */
+    public static void releaseFrame(VMProcess process, int ppn) {
+	freePhysicalPagesLock.acquire();
+
+	Frame frame = invertedPageTable[ppn];
+	frame.owners.remove(process);
+	if (frame.owners.isEmpty()) {
+	    unshareFrame(ppn);
+	    Lib.assertTrue(frame.pinCount == 0);
+	    invalidateTLB(ppn);
+	    freePhysicalPages.add(ppn);
+	}
+
+	freePhysicalPagesLock.release();
+    }
+
+    /**
+     * Find the shared image for an executable, creating it if no running
+     * process was loaded from that executable.
+     *
+     * @param	key	identifies the executable and its section layout.
+     * @param	numPages	the number of pages in the address space.
+     * @return	the shared image.
+     */
+    public static SharedImage attachImage(String key, int numPages) {
+	freePhysicalPagesLock.acquire();
+
+	SharedImage image = sharedImages.get(key);
+	if (image == null) {
+	    image = new SharedImage(key, numPages);
+	    sharedImages.put(key, image);
+	}
+	image.processes++;
+
+	freePhysicalPagesLock.release();
+
+	return image;
+    }
+
+    /**
+     * Drop a reference to a shared image. The caller must already have
+     * released every page it mapped from the image.
+     *
+     * @param	image	the shared image.
+     */
+    public static void detachImage(SharedImage image) {
+	freePhysicalPagesLock.acquire();
+
+	if (--image.processes == 0)
+	    sharedImages.remove(image.key);
+
+	freePhysicalPagesLock.release();
+    }
+
+    /**
+     * Map a page of an executable that another process has already loaded,
+     * if it is still in physical memory. As with <tt>allocateFrame()</tt>,
+     * the page is returned pinned, so that it is not evicted before the
+     * process has mapped it.
+     *
+     * @param	process	the process that wants the page.
+     * @param	image	the shared image of its executable.
+     * @param	vpn	the virtual page number.
+     * @return	the physical page number, or -1 if the page is not resident.
+     */
+    public static int shareFrame(VMProcess process, SharedImage image,
+				 int vpn) {
+	freePhysicalPagesLock.acquire();
+
+	int ppn = image.ppns[vpn];
+	if (ppn != -1) {
+	    Frame frame = invertedPageTable[ppn];
+	    frame.owners.add(process);
+	    frame.pinCount++;
+	}
+
+	freePhysicalPagesLock.release();
+
+	return ppn;
+    }
+
+    /**
+     * Offer a page just loaded from an executable to other processes of the
+     * same image. The page must still be pinned and hold exactly what the
+     * executable contains.
+     *
+     * @param	image	the shared image.
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the physical page holding it.
+     * @return	<tt>true</tt> if the page is now shared through the image,
+     *		<tt>false</tt> if another copy already is.
+     */
+    public static boolean publishFrame(SharedImage image, int vpn, int ppn) {
+	freePhysicalPagesLock.acquire();
+
+	boolean published = (image.ppns[vpn] == -1);
+	if (published) {
+	    image.ppns[vpn] = ppn;
+	    invertedPageTable[ppn].image = image;
+	}
+
+	freePhysicalPagesLock.release();
+
+	return published;
+    }
+
+    /**
+     * Give a process its own copy of a shared page it is about to write. If
+     * no other process maps the page, it is simply withdrawn from its image
+     * instead of being copied. The caller must have the shared page pinned;
+     * the pin is moved to the copy.
+     *
+     * <p>
+     * If there is no room for the copy, the shared page is unpinned while
+     * waiting for some, so that waiting processes do not keep each other
+     * from making progress. The process may lose the shared page meanwhile,
+     * in which case it must fault it in again.
+     *
+     * @param	process	the process writing the page.
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the shared physical page.
+     * @return	the private physical page, or -1 if the process no longer
+     *		maps the shared page, which is then no longer pinned.
+     */
+    public static int copyOnWrite(VMProcess process, int vpn, int ppn) {
+	freePhysicalPagesLock.acquire();
+
+	Frame frame = invertedPageTable[ppn];
+	TranslationEntry entry = process.getPageTableEntry(vpn);
+
+	int copyPPN = -1;
+	while (frame.owners.size() > 1 && (copyPPN = takeFrame()) == -1) {
+	    unpin(ppn);
+	    waitForFrame(process);
+
+	    if (!entry.valid || entry.ppn != ppn) {
+		freePhysicalPagesLock.release();
+		return -1;
+	    }
+
+	    frame.pinCount++;
+	}
+
+	// no other process maps the page any more, so there is nothing to copy
+	if (copyPPN == -1) {
+	    unshareFrame(ppn);
+	    copyPPN = ppn;
+	}
+	else {
+	    Lib.debug(dbgVM, "	copy vpn " + vpn + " from ppn " + ppn +
+		      " to ppn " + copyPPN);
+
+	    byte[] buffer = new byte[pageSize];
+	    Machine.processor().readMemory(ppn*pageSize, buffer, 0, pageSize);
+	    Machine.processor().writeMemory(copyPPN*pageSize, buffer, 0,
+					    pageSize);
+
+	    frame.owners.remove(process);
+	    invalidateTLB(ppn);
+
+	    Frame copy = invertedPageTable[copyPPN];
+	    copy.owners.add(process);
+	    copy.vpn = vpn;
+	    copy.pinCount = 1;
+	    unpin(ppn);
+	}
+
+	freePhysicalPagesLock.release();
+
+	flushSwapWrites();
+
+	return copyPPN;
+    }
+
+    /**
+     * Withdraw a page from the image it is shared through, so that no more
+     * processes map it. The caller must hold <tt>freePhysicalPagesLock</tt>.
+     *
+     * @param	ppn	the physical page number.
+     */
+    private static void unshareFrame(int ppn) {
+	Frame frame = invertedPageTable[ppn];
+	if (frame.image == null)
+	    return;
+
+	frame.image.ppns[frame.vpn] = -1;
+	frame.image = null;
+    }
+
+    /**
+     * Choose a physical page to replace and take it away from the process
+     * that owns it. The clock hand sweeps the frames, clearing the
+     * <tt>used</tt> bit of each page it passes and evicting the first page
+     * whose bit is already clear. A shared page is referenced if any of the
+     * processes mapping it has used it, and is taken away from all of them.
+     * A dirty victim is queued for writing to swap; clean pages can be read
+     * back from swap or the executable. The caller must hold
+     * <tt>freePhysicalPagesLock</tt>, and must call
+     * <tt>flushSwapWrites()</tt> once it has released it.
+     *
+     * @return	the physical page number, or -1 if no page can be evicted.
+     */
+    private static int evictFrame() {
+	syncTLB();
+
+	// two sweeps clear every used bit, so a third finds nothing new
+	for (int i=0; i<2*invertedPageTable.length; i++) {
+	    int ppn = clockHand;
+	    clockHand = (clockHand+1) % invertedPageTable.length;
+
+	    Frame frame = invertedPageTable[ppn];
+	    if (frame.owners.isEmpty() || frame.pinCount > 0)
+		continue;
+
+	    boolean used = false;
+	    for (VMProcess process : frame.owners) {
+		TranslationEntry entry = process.getPageTableEntry(frame.vpn);
+		used |= entry.used;
+		entry.used = false;
+	    }
+	    if (used)
+		continue;
+
+	    Lib.debug(dbgVM, "\tevict vpn " + frame.vpn + " from ppn " + ppn);
+
+	    // only private pages can be dirty, since shared ones are read-only
+	    boolean dirty = false;
+	    for (VMProcess process : frame.owners) {
+		TranslationEntry entry = process.getPageTableEntry(frame.vpn);
+		entry.valid = false;
+		dirty |= entry.dirty;
+	    }
+	    invalidateTLB(ppn);
+
+	    if (dirty)
+		writeSwap(ppn);
+
+	    unshareFrame(ppn);
+	    frame.owners.clear();
+
+	    return ppn;
+	}
+
+	Lib.debug(dbgVM, "\tno page to evict");
+	return -1;
+    }
+
+    /**
+     * Queue a dirty page that is being evicted for writing to swap. Every
+     * swap write costs a file system delay however much it transfers, so
+     * the next dirty pages the clock would evict are evicted along with it
+     * and written in the same batch, into consecutive slots. These are the
+     * private, unpinned, unreferenced pages ahead of the hand; they go back
+     * on the free list. The pages are copied out now, so they can be
+     * reallocated at once; the write itself is done by
+     * <tt>flushSwapWrites()</tt>, since the caller holds
+     * <tt>freePhysicalPagesLock</tt>.
+     *
+     * @param	victim	the physical page being evicted, which the caller
+     *			has already unmapped.
+     */
+    private static void writeSwap(int victim) {
+	int[] batch = new int[swapBatchPages];
+	int count = 0;
+	batch[count++] = victim;
+
+	for (int i=0; i<invertedPageTable.length && count<swapBatchPages; i++) {
+	    int ppn = (clockHand+i) % invertedPageTable.length;
+
+	    Frame frame = invertedPageTable[ppn];
+	    if (ppn == victim || frame.owners.size() != 1 || frame.pinCount > 0)
+		continue;
+
+	    VMProcess process = frame.owners.getFirst();
+	    TranslationEntry entry = process.getPageTableEntry(frame.vpn);
+	    if (!entry.dirty || entry.used)
+		continue;
+
+	    Lib.debug(dbgVM, "\tevict vpn " + frame.vpn + " from ppn " + ppn);
+
+	    entry.valid = false;
+	    invalidateTLB(ppn);
+	    batch[count++] = ppn;
+	}
+
+	int firstSlot = allocateSwapSlots(count);
+	byte[] buffer = new byte[count*pageSize];
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<count; i++) {
+	    Frame frame = invertedPageTable[batch[i]];
+	    VMProcess process = frame.owners.getFirst();
+	    TranslationEntry entry = process.getPageTableEntry(frame.vpn);
+
+	    int oldSlot = process.getSwapSlot(frame.vpn);
+	    if (oldSlot != -1)
+		swapSlots.clear(oldSlot);
+	    process.setSwapSlot(frame.vpn, firstSlot+i);
+
+	    processor.readMemory(batch[i]*pageSize, buffer, i*pageSize,
+				 pageSize);
+	    entry.dirty = false;
+
+	    // the caller frees the victim itself
+	    if (batch[i] != victim) {
+		frame.owners.clear();
+		freePhysicalPages.add(batch[i]);
+	    }
+	}
+
+	swapWrites.add(new SwapWrite(firstSlot, count, buffer));
+	swapSlotsWriting.set(firstSlot, firstSlot+count);
+    }
+
+    /**
+     * Write the batches queued by <tt>writeSwap()</tt> to the swap file. A
+     * batch stays queued until its write completes, so that its pages can
+     * still be read back meanwhile. The caller must not hold
+     * <tt>freePhysicalPagesLock</tt>.
+     */
+    private static void flushSwapWrites() {
+	while (true) {
+	    freePhysicalPagesLock.acquire();
+
+	    SwapWrite write = null;
+	    for (SwapWrite queued : swapWrites) {
+		if (!queued.started) {
+		    write = queued;
+		    break;
+		}
+	    }
+
+	    if (write == null) {
+		freePhysicalPagesLock.release();
+		return;
+	    }
+
+	    write.started = true;
+
+	    freePhysicalPagesLock.release();
+
+	    Lib.debug(dbgVM, "\twrite " + write.count +
+		      " pages to swap slot " + write.firstSlot);
+
+	    int written = swapFile.write(write.firstSlot*pageSize,
+					 write.buffer, 0, write.buffer.length);
+	    Lib.assertTrue(written == write.buffer.length, "swap write failed");
+
+	    freePhysicalPagesLock.acquire();
+	    swapWrites.remove(write);
+	    swapSlotsWriting.clear(write.firstSlot, write.firstSlot+write.count);
+	    freePhysicalPagesLock.release();
+	}
+    }
+
+    /**
+     * Read a page back from swap into physical memory. A page whose write
+     * to swap has not completed yet is copied from the queued batch.
+     *
+     * @param	slot	the swap slot holding the page.
+     * @param	ppn	the physical page to fill.
+     */
+    public static void readSwap(int slot, int ppn) {
+	byte[] buffer = new byte[pageSize];
+	boolean queued = false;
+
+	freePhysicalPagesLock.acquire();
+
+	for (SwapWrite write : swapWrites) {
+	    if (slot >= write.firstSlot && slot < write.firstSlot+write.count) {
+		System.arraycopy(write.buffer, (slot-write.firstSlot)*pageSize,
+				 buffer, 0, pageSize);
+		queued = true;
+		break;
+	    }
+	}
+
+	freePhysicalPagesLock.release();
+
+	if (!queued) {
+	    int read = swapFile.read(slot*pageSize, buffer, 0, pageSize);
+	    Lib.assertTrue(read == pageSize, "swap read failed");
+	}
+
+	Machine.processor().writeMemory(ppn*pageSize, buffer, 0, pageSize);
+    }
+
+    /**
+     * Release a swap slot that a process no longer needs.
+     *
+     * @param	slot	the swap slot.
+     */
+    public static void freeSwapSlot(int slot) {
+	freePhysicalPagesLock.acquire();
+	swapSlots.clear(slot);
+	freePhysicalPagesLock.release();
+    }
+
+    /**
+     * Find and reserve the first run of free swap slots of the specified
+     * length. A freed slot that is still being written is not reused until
+     * the write completes, so that the old write cannot land on top of a
+     * new one. The swap file grows as needed, so this always succeeds.
+     *
+     * @param	count	the number of consecutive slots needed.
+     * @return	the first slot of the run.
+     */
+    private static int allocateSwapSlots(int count) {
+	BitSet busy = (BitSet) swapSlots.clone();
+	busy.or(swapSlotsWriting);
+
+	int first = busy.nextClearBit(0);
+	while (true) {
+	    int used = busy.nextSetBit(first);
+	    if (used == -1 || used >= first+count)
+		break;
+
+	    first = busy.nextClearBit(used);
+	}
+
+	swapSlots.set(first, first+count);
+	return first;
+    }
+
+    /**
+     * Copy the <tt>used</tt> and <tt>dirty</tt> bits of every TLB entry into
+     * the page table entry it came from, and clear the <tt>used</tt> bits in
+     * the TLB so that the clock sees later references.
+     */
+    private static void syncTLB() {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (!tlbEntry.valid || !tlbEntry.used)
+		continue;
+
+	    Frame frame = invertedPageTable[tlbEntry.ppn];
+	    for (VMProcess process : frame.owners) {
+		TranslationEntry entry = process.getPageTableEntry(frame.vpn);
+		entry.used = true;
+		entry.dirty |= tlbEntry.dirty;
+	    }
+
+	    tlbEntry.used = false;
+	    processor.writeTLBEntry(i, tlbEntry);
+	}
+    }
+
+    /**
+     * Remove any TLB entry that maps the specified physical page.
+     *
+     * @param	ppn	the physical page number.
+     */
+    private static void invalidateTLB(int ppn) {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.ppn == ppn)
+		processor.writeTLBEntry(i, new TranslationEntry());
+	}
+    }
+
+    /**
+     * The owner of a physical page, as recorded in the inverted page table.
+     */
+    private static class Frame {
+	/** The processes mapping this page; empty if it is free. */
+	LinkedList<VMProcess> owners = new LinkedList<VMProcess>();
+	/** The virtual page stored in this page. */
+	int vpn;
+	/** The number of pins keeping this page from being evicted. */
+	int pinCount = 0;
+	/** The image this page is shared through, or <tt>null</tt>. */
+	SharedImage image = null;
+    }
+
+    /**
+     * A batch of pages copied out for writing to swap.
+     */
+    private static class SwapWrite {
+	SwapWrite(int firstSlot, int count, byte[] buffer) {
+	    this.firstSlot = firstSlot;
+	    this.count = count;
+	    this.buffer = buffer;
+	}
+
+	/** The slot the first page is written to. */
+	int firstSlot;
+	/** The number of pages, written to consecutive slots. */
+	int count;
+	/** The contents of the pages. */
+	byte[] buffer;
+	/** Whether some thread is writing the batch. */
+	boolean started = false;
+    }
+
+    /**
+     * The pages of an executable that processes loaded from it can share.
+     * Only pages holding exactly what the executable contains are listed;
+     * a process writing one gets a copy of its own first.
+     */
+    static class SharedImage {
+	SharedImage(String key, int numPages) {
+	    this.key = key;
+
+	    ppns = new int[numPages];
+	    for (int vpn=0; vpn<numPages; vpn++)
+		ppns[vpn] = -1;
+	}
+
+	/** Identifies the executable and its section layout. */
+	String key;
+	/** The physical page holding each virtual page, or -1. */
+	int[] ppns;
+	/** The number of processes using this image. */
+	int processes = 0;
+    }
+
+    /** The owner of each physical page, indexed by physical page number. */
+    private static Frame[] invertedPageTable;
+    /** The next physical page the clock will examine. */
+    private static int clockHand = 0;
+    /** Signalled when a page is unpinned. */
+    private static Condition2 frameUnpinned;
+    /** The number of pins held by processes for their faulting
+     *	instructions. */
+    private static int numHeldFrames = 0;
+
+    /** The shared image of each executable that processes are running. */
+    private static HashMap<String, SharedImage> sharedImages =
+	new HashMap<String, SharedImage>();
+
+    /** The swap file. */
+    private static OpenFile swapFile = null;
+    /** The swap slots in use. */
+    private static BitSet swapSlots = new BitSet();
+    /** The batches queued for writing to swap, oldest first. */
+    private static LinkedList<SwapWrite> swapWrites =
+	new LinkedList<SwapWrite>();
+    /** The swap slots that queued batches are written to. */
+    private static BitSet swapSlotsWriting = new BitSet();
+    /** The most pages written to swap at once. */
+    private static int swapBatchPages;
+
+    private static final String swapFileName = "swap";
+    private static final int pageSize = Processor.pageSize;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -16,12 +18,34 @@ public class VMProcess extends UserProcess {
 	super();
     }
 
+    /**
+     * Execute the specified program with the specified arguments, remembering
+     * its name so that pages can be shared with other processes running the
+     * same executable.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @param	args	the arguments to pass to the executable.
+     * @return	<tt>true</tt> if the program was successfully executed.
+     */
+    public boolean execute(String name, String[] args) {
+	executableName = name;
+
+	return super.execute(name, args);
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
      */
     public void saveState() {
 	super.saveState();
+
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    syncTLBEntry(processor.readTLBEntry(i));
     }
 
     /**
@@ -29,7 +53,20 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB()) {
+	    super.restoreState();
+	    return;
+	}
+
+	// the TLB still holds our own entries if no other process ran since
+	if (tlbOwner == this)
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    processor.writeTLBEntry(i, new TranslationEntry());
+
+	tlbOwner = this;
     }
 
     /**
@@ -39,15 +76,451 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	String key = imageKey();
+	if (key == null) {
+	    coff.close();
+	    Lib.debug(dbgVM, "\tcannot reopen executable");
+	    return false;
+	}
+
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+
+	swapSlots = new int[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    swapSlots[vpn] = -1;
+
+	copyOnWrite = new boolean[numPages];
+
+	// remember which section each page comes from; the rest of the pages
+	// (stack and arguments) are zero-filled
+	pageSections = new CoffSection[numPages];
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+		pageSections[vpn] = section;
+		pageTable[vpn].readOnly = section.isReadOnly();
+	    }
+	}
+
+	sharedImage = VMKernel.attachImage(key, numPages);
+
+	return true;
+    }
+
+    /**
+     * Return the key identifying the executable in the shared image table.
+     * The name alone could match a different file, or one overwritten since
+     * another process loaded it, so the file's length and headers are part
+     * of the key, as in <tt>CoffCache</tt>, along with the section layout.
+     *
+     * @return	the key, or <tt>null</tt> if the executable cannot be read.
+     */
+    private String imageKey() {
+	OpenFile file = ThreadedKernel.fileSystem.open(executableName, false);
+	if (file == null)
+	    return null;
+
+	byte[] header = new byte[headerLength];
+	int length = file.length();
+	int read = file.read(0, header, 0, headerLength);
+	file.close();
+
+	if (read != headerLength)
+	    return null;
+
+	StringBuffer key = new StringBuffer(executableName);
+	key.append(":" + length + ":");
+	for (int i=0; i<headerLength; i+=4)
+	    key.append(Lib.toHexString(Lib.bytesToInt(header, i)));
+
+	key.append(":" + Lib.toHexString(coff.getEntryPoint()));
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    key.append(":" + section.getFirstVPN() + "+" + section.getLength());
+	}
+
+	return key.toString();
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	releaseHeldFrames();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn].valid)
+		VMKernel.releaseFrame(this, pageTable[vpn].ppn);
+	    if (swapSlots[vpn] != -1)
+		VMKernel.freeSwapSlot(swapSlots[vpn]);
+	}
+
+	VMKernel.detachImage(sharedImage);
+
+	if (tlbOwner == this)
+	    tlbOwner = null;
+
+	coff.close();
+    }
+
+    /**
+     * Return the page table entry for the specified virtual page, so that
+     * <tt>VMKernel</tt> can age and evict it.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the page table entry.
+     */
+    TranslationEntry getPageTableEntry(int vpn) {
+	return pageTable[vpn];
+    }
+
+    /**
+     * Return the swap slot holding a copy of the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the swap slot, or -1 if the page has never been swapped out.
+     */
+    int getSwapSlot(int vpn) {
+	return swapSlots[vpn];
+    }
+
+    /**
+     * Record the swap slot holding a copy of the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	slot	the swap slot.
+     */
+    void setSwapSlot(int vpn, int slot) {
+	swapSlots[vpn] = slot;
+    }
+
+    /**
+     * Give up the pages held for the faulting instruction without unpinning
+     * them, so that <tt>VMKernel</tt> can unpin them while it holds its lock.
+     *
+     * @return	the held physical pages.
+     */
+    LinkedList<Integer> takeHeldFrames() {
+	LinkedList<Integer> frames = heldFrames;
+	heldFrames = new LinkedList<Integer>();
+	return frames;
+    }
+
+    /**
+     * Transfer data from this process's virtual memory to the specified array,
+     * bringing each page into physical memory just before it is copied. A
+     * page brought in earlier may be evicted to make room for a later one, so
+     * pages are faulted in one at a time, each staying pinned while it is
+     * copied.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to transfer from virtual memory to
+     *			the array.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int readVirtualMemory(int vaddr, byte[] data, int offset,
+				 int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
+
+	// let UserProcess deal with addresses outside the process
+	if (vaddr < 0 || vaddr+length > numPages*pageSize)
+	    return super.readVirtualMemory(vaddr, data, offset, length);
+
+	Processor processor = Machine.processor();
+
+	int amount = 0;
+	while (amount < length) {
+	    int vpn = Processor.pageFromAddress(vaddr+amount);
+	    int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+	    int chunk = Math.min(length-amount, pageSize-pageOffset);
+
+	    int ppn = pageIn(vpn);
+	    processor.readMemory(ppn*pageSize + pageOffset, data,
+				 offset+amount, chunk);
+	    pageTable[vpn].used = true;
+	    VMKernel.unpinFrame(ppn);
+
+	    amount += chunk;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Transfer data from the specified array to this process's virtual memory,
+     * bringing each page into physical memory just before it is copied.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	data	the array containing the data to transfer.
+     * @param	offset	the first byte to transfer from the array.
+     * @param	length	the number of bytes to transfer from the array to
+     *			virtual memory.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int writeVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
+
+	// let UserProcess deal with addresses outside the process
+	if (vaddr < 0 || vaddr+length > numPages*pageSize)
+	    return super.writeVirtualMemory(vaddr, data, offset, length);
+
+	Processor processor = Machine.processor();
+
+	int amount = 0;
+	while (amount < length) {
+	    int vpn = Processor.pageFromAddress(vaddr+amount);
+	    int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+	    int chunk = Math.min(length-amount, pageSize-pageOffset);
+
+	    if (pageTable[vpn].readOnly && !copyOnWrite[vpn])
+		break;
+	    int ppn = pageIn(vpn);
+	    if (copyOnWrite[vpn]) {
+		ppn = breakCopyOnWrite(vpn, ppn);
+		if (ppn == -1)
+		    continue;
+	    }
+
+	    TranslationEntry entry = pageTable[vpn];
+	    processor.writeMemory(ppn*pageSize + pageOffset, data,
+				  offset+amount, chunk);
+	    entry.used = true;
+	    entry.dirty = true;
+	    VMKernel.unpinFrame(ppn);
+
+	    amount += chunk;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Bring the specified virtual page into physical memory if it is not
+     * already there, and pin it. A page that was ever written to swap is read
+     * back from there. A page of the executable is shared with another
+     * process running the same executable if one has it in memory, and
+     * otherwise loaded and offered for sharing; writable pages are shared
+     * copy-on-write. Stack and argument pages are zero-filled.
+     *
+     * @param	vpn	the virtual page to bring in.
+     * @return	the physical page holding it, which stays pinned until the
+     *		caller unpins it.
+     */
+    private int pageIn(int vpn) {
+	int ppn = VMKernel.pinFrame(this, vpn);
+	if (ppn != -1)
+	    return ppn;
+
+	CoffSection section = pageSections[vpn];
+	boolean pristine = (section != null && swapSlots[vpn] == -1);
+
+	if (pristine) {
+	    ppn = VMKernel.shareFrame(this, sharedImage, vpn);
+	    if (ppn != -1) {
+		Lib.debug(dbgVM, "\tshare vpn " + vpn + " in ppn " + ppn);
+
+		mapExecutablePage(vpn, ppn, true);
+		return ppn;
+	    }
+	}
+
+	return loadPage(vpn);
+    }
+
+    /**
+     * Load a page that is in neither physical memory nor the shared image
+     * into a newly allocated page, which is left pinned.
+     *
+     * @param	vpn	the virtual page to load.
+     * @return	the physical page holding it.
+     */
+    private int loadPage(int vpn) {
+	CoffSection section = pageSections[vpn];
+	boolean pristine = (section != null && swapSlots[vpn] == -1);
+
+	int ppn = VMKernel.allocateFrame(this, vpn);
+
+	Lib.debug(dbgVM, "\tpage in vpn " + vpn + " to ppn " + ppn);
+
+	if (swapSlots[vpn] != -1)
+	    VMKernel.readSwap(swapSlots[vpn], ppn);
+	else if (section != null)
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	else
+	    Machine.processor().writeMemory(ppn*pageSize, zeroPage, 0,
+					    pageSize);
+
+	if (pristine)
+	    mapExecutablePage(vpn, ppn,
+			      VMKernel.publishFrame(sharedImage, vpn, ppn));
+	else
+	    mapPage(vpn, ppn);
+
+	return ppn;
+    }
+
+    /**
+     * Map a page holding exactly what the executable contains. A shared
+     * page of a writable section is mapped read-only, so that the first
+     * write to it faults and can be given a private copy.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the physical page number.
+     * @param	shared	whether the page is shared through the image.
+     */
+    private void mapExecutablePage(int vpn, int ppn, boolean shared) {
+	boolean sectionReadOnly = pageSections[vpn].isReadOnly();
+
+	copyOnWrite[vpn] = (shared && !sectionReadOnly);
+	pageTable[vpn].readOnly = (sectionReadOnly || copyOnWrite[vpn]);
+	mapPage(vpn, ppn);
+    }
+
+    /**
+     * Make a page table entry valid for a page that was just brought in. The
+     * page is marked used, so that the clock does not pick it before the
+     * access that brought it in has had a chance to use it.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the physical page number.
+     */
+    private void mapPage(int vpn, int ppn) {
+	TranslationEntry entry = pageTable[vpn];
+	entry.ppn = ppn;
+	entry.used = true;
+	entry.dirty = false;
+	entry.valid = true;
+    }
+
+    /**
+     * Give this process a private, writable copy of a copy-on-write page,
+     * and replace any TLB entry still mapping the shared page.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	sharedPPN	the shared physical page, which must be pinned.
+     * @return	the private physical page, which is now pinned in place of
+     *		the shared one, or -1 if the shared page was evicted while
+     *		waiting for memory and must be faulted in again.
+     */
+    private int breakCopyOnWrite(int vpn, int sharedPPN) {
+	TranslationEntry entry = pageTable[vpn];
+
+	int ppn = VMKernel.copyOnWrite(this, vpn, sharedPPN);
+	if (ppn == -1)
+	    return -1;
+
+	entry.ppn = ppn;
+	entry.readOnly = false;
+	copyOnWrite[vpn] = false;
+
+	Processor processor = Machine.processor();
+	if (processor.hasTLB()) {
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry tlbEntry = processor.readTLBEntry(i);
+		if (tlbEntry.valid && tlbEntry.vpn == vpn) {
+		    syncTLBEntry(tlbEntry);
+		    processor.writeTLBEntry(i, entry);
+		}
+	    }
+	}
+
+	return ppn;
+    }
+
+    /**
+     * Handle a TLB miss by bringing the page into physical memory if
+     * necessary and then loading its translation into the TLB.
+     *
+     * @param	vaddr	the virtual address that missed.
+     * @return	<tt>true</tt> if the TLB now maps the address.
+     */
+    private boolean handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= numPages)
+	    return false;
+
+	// a page that is already in memory is just a TLB refill, which cannot
+	// be interrupted before the instruction is retried
+	while (!pageTable[vpn].valid)
+	    holdFrame(pageIn(vpn));
+
+	Processor processor = Machine.processor();
+
+	// the entry must go in the set selected by its vpn; prefer an empty
+	// way, otherwise replace them in turn
+	int ways = processor.getTLBWays();
+	int first = (vpn % (processor.getTLBSize() / ways)) * ways;
+	int victim = -1;
+	for (int i=first; i<first+ways; i++) {
+	    if (!processor.readTLBEntry(i).valid) {
+		victim = i;
+		break;
+	    }
+	}
+
+	if (victim == -1) {
+	    victim = first + nextVictimWay;
+	    nextVictimWay = (nextVictimWay+1) % ways;
+
+	    // keep the faulting instruction's own page mapped, or it could
+	    // never be retried
+	    int pcVPN =
+		Processor.pageFromAddress(processor.readRegister(Processor.regPC));
+	    if (vpn != pcVPN && processor.readTLBEntry(victim).vpn == pcVPN) {
+		victim = first + nextVictimWay;
+		nextVictimWay = (nextVictimWay+1) % ways;
+	    }
+	}
+
+	syncTLBEntry(processor.readTLBEntry(victim));
+	processor.writeTLBEntry(victim, pageTable[vpn]);
+
+	return true;
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry back into the page table.
+     *
+     * @param	tlbEntry	a copy of the TLB entry.
+     */
+    private void syncTLBEntry(TranslationEntry tlbEntry) {
+	if (!tlbEntry.valid)
+	    return;
+
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	entry.used |= tlbEntry.used;
+	entry.dirty |= tlbEntry.dirty;
+    }
+
+    /**
+     * Keep a pinned page pinned until the faulting instruction has been
+     * retried. An instruction can fault on both the page it is fetched from
+     * and the page it accesses, so the last two such pages are held.
+     *
+     * @param	ppn	the physical page, which must be pinned.
+     */
+    private void holdFrame(int ppn) {
+	if (heldFrames.size() == maxHeldFrames)
+	    VMKernel.releaseHeldFrame(heldFrames.removeFirst());
+
+	if (VMKernel.holdFrame(ppn))
+	    heldFrames.add(ppn);
+    }
+
+    /**
+     * Unpin the pages held for the last faulting instruction.
+     */
+    private void releaseHeldFrames() {
+	while (!heldFrames.isEmpty())
+	    VMKernel.releaseHeldFrame(heldFrames.removeFirst());
+    }
 
     /**
      * Handle a user exception. Called by
@@ -60,13 +533,82 @@ public class VMProcess extends UserProcess {
     public void handleException(int cause) {
 	Processor processor = Machine.processor();
 
+	// the held pages can be let go once the instruction that faulted on
+	// them has got past its faults
+	int pc = processor.readRegister(Processor.regPC);
+	boolean pageFault = (cause == Processor.exceptionTLBMiss ||
+			     cause == Processor.exceptionReadOnly ||
+			     cause == Processor.exceptionPageFault);
+	if (!pageFault || pc != faultPC)
+	    releaseHeldFrames();
+	faultPC = pc;
+
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    if (handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+		break;
+
+	    // the address is not part of this process, or there is no memory
+	    super.handleException(cause);
+	    break;
+	case Processor.exceptionReadOnly:
+	    int badVPN = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+	    if (badVPN < numPages && copyOnWrite[badVPN]) {
+		// if the shared page was lost, the retried write faults it in
+		int ppn = breakCopyOnWrite(badVPN, pageIn(badVPN));
+		if (ppn != -1)
+		    holdFrame(ppn);
+		break;
+	    }
+
+	    super.handleException(cause);
+	    break;
+	case Processor.exceptionPageFault:
+	    int vpn = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+	    if (vpn < numPages) {
+		while (!pageTable[vpn].valid)
+		    holdFrame(pageIn(vpn));
+		break;
+	    }
+
+	    super.handleException(cause);
+	    break;
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /** The section each virtual page is loaded from, or <tt>null</tt>. */
+    private CoffSection[] pageSections;
+    /** The swap slot holding each virtual page, or -1. */
+    private int[] swapSlots;
+    /** Whether each virtual page is a shared page that must be copied
+     *	before it is written. */
+    private boolean[] copyOnWrite;
+
+    /** The name this process was executed with. */
+    private String executableName;
+    /** The pages this process can share with others running its executable. */
+    private VMKernel.SharedImage sharedImage;
+
+    /** The pages kept pinned for the last faulting instruction. */
+    private LinkedList<Integer> heldFrames = new LinkedList<Integer>();
+    /** The address of the last instruction that faulted. */
+    private int faultPC = -1;
+    private static final int maxHeldFrames = 2;
+
+    /** Rotates through the ways of a TLB set when choosing a victim. */
+    private static int nextVictimWay = 0;
+    /** The process whose translations are currently in the TLB. */
+    private static VMProcess tlbOwner = null;
+
+    private static final byte[] zeroPage = new byte[Processor.pageSize];
+    /** The length of the COFF file header and a.out header. */
+    private static final int headerLength = 48;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';